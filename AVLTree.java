@@ -1,3 +1,62 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -9,8 +68,316 @@
 
 public class AVLTree {
 
+	private static final int EXPORT_FORK_SIZE = 1 << 13;
+	private static final int SEARCH_FORK_SIZE = 1 << 10;
+	private static final int DIFF_LEAF_SIZE = 16;
+	private static final int VERIFY_FORK_SIZE = 1 << 13;
+	private static final int REPLACE_FORK_SIZE = 1 << 13;
+	// verify forks no deeper, an AVL tree this deep has over 2^45 nodes
+	private static final int MAX_VERIFY_FORK_DEPTH = 64;
+	// the info of a node deleted lazily, compared by identity
+	private static final String DELETED = new String("deleted");
+
 	private IAVLNode root;
-	private final NodeFactory factory = new NodeFactory();
+	private final NodeFactory factory;
+	private final ValueArena arena;
+	private final int capacity;
+	private final EvictionPolicy eviction;
+	// nodes are HashedNodes that keep the hash of their subtree
+	private final boolean hashed;
+	// LRU and LFU trees keep their nodes in a doubly linked usage order, ascending
+	// by use count and then by last use. usageTails maps every use count to its
+	// last node.
+	private TreeMap<Integer, TrackedNode> usageTails;
+	private TrackedNode usageHead;
+	private TrackedNode usageTail;
+	// the nodes with the smallest and largest key, null when not known
+	private IAVLNode minCache;
+	private IAVLNode maxCache;
+	// shared by the trees split from this one, see publishChanges
+	private SubmissionPublisher<ChangeEvent> changes;
+	private AtomicLong changeSequence;
+	// shared by the trees derived from this one through split and extractRange
+	private MembershipFilter filter;
+	// not shared, split hands it to the larger part and rebuilds the smaller one
+	private ValueIndex valueIndex;
+	// the scope of the handles given out by insertHandle, null if there are none
+	private HandleScope handles;
+	// lazy deletion: deleted nodes stay in place as tombstones until a rebuild
+	private double maxTombstoneRatio;
+	private boolean backgroundRebuild;
+	private CompletableFuture<IAVLNode> rebuilding;
+	// the keys inserted, deleted or updated since the running rebuild started
+	private int[] rebuildLog;
+	private int rebuildLogSize;
+	private boolean rebuildInForeground;
+
+	public AVLTree() {
+		this.factory = new NodeFactory();
+		this.arena = null;
+		this.capacity = Integer.MAX_VALUE;
+		this.eviction = null;
+		this.hashed = false;
+	}
+
+	/**
+	 * public AVLTree(boolean hashed)
+	 *
+	 * Creates an empty tree. If hashed, every node keeps the sum of the hashes of
+	 * the items (key and info) in its subtree, maintained wherever subtree sizes
+	 * are, so that rootHash, rangeHash and diff are available. The sum does not
+	 * depend on the shape of the tree, so equal item sets have equal hashes. Trees
+	 * returned by split and extractRange are hashed as well.
+	 */
+	public AVLTree(boolean hashed) {
+		this.factory = hashed ? new HashedNodeFactory() : new NodeFactory();
+		this.arena = null;
+		this.capacity = Integer.MAX_VALUE;
+		this.eviction = null;
+		this.hashed = hashed;
+	}
+
+	/**
+	 * public AVLTree(ValueArena arena)
+	 *
+	 * Creates an empty tree that stores its info as UTF-8 bytes in arena instead
+	 * of one String per node. Trees returned by split and extractRange share the
+	 * arena.
+	 */
+	public AVLTree(ValueArena arena) {
+		this.factory = new ArenaNodeFactory(arena);
+		this.arena = arena;
+		this.capacity = Integer.MAX_VALUE;
+		this.eviction = null;
+		this.hashed = false;
+	}
+
+	/**
+	 * public AVLTree(int capacity, EvictionPolicy eviction)
+	 *
+	 * Creates an empty tree that holds at most capacity items. An insert that
+	 * exceeds the capacity evicts one item chosen by eviction, through the same
+	 * delete path as delete(k). LRU and LFU trees link their nodes in usage order,
+	 * a successful search counts as a use. Trees returned by split and
+	 * extractRange have the same capacity and policy.
+	 */
+	public AVLTree(int capacity, EvictionPolicy eviction) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.arena = null;
+		this.capacity = capacity;
+		this.eviction = eviction;
+		this.hashed = false;
+		if (eviction == EvictionPolicy.LRU || eviction == EvictionPolicy.LFU) {
+			this.factory = new TrackedNodeFactory();
+			this.usageTails = new TreeMap<>();
+		} else {
+			this.factory = new NodeFactory();
+		}
+	}
+
+	/**
+	 * private AVLTree emptyTree()
+	 *
+	 * Returns a new empty tree with the same value storage and lazy deletion as
+	 * this tree
+	 */
+	private AVLTree emptyTree() {
+		AVLTree tree;
+		if (this.eviction != null) {
+			tree = new AVLTree(this.capacity, this.eviction);
+		} else if (this.arena != null) {
+			tree = new AVLTree(this.arena);
+		} else {
+			tree = new AVLTree(this.hashed);
+		}
+		tree.filter = this.filter;
+		tree.maxTombstoneRatio = this.maxTombstoneRatio;
+		tree.backgroundRebuild = this.backgroundRebuild;
+		return tree;
+	}
+
+	/**
+	 * public void enableFilter(int expectedItems, double falsePositiveRate)
+	 *
+	 * Puts a counting Bloom filter of the keys in front of the tree, sized for
+	 * expectedItems keys at the given false positive rate. Lookups of keys the
+	 * filter rules out return without a descent. insert, delete, split, join and
+	 * the range deletions keep it up to date. The trees returned by split share
+	 * the filter of their source, which holds the keys of all of them, so they
+	 * must not be used from different threads. The tree returned by extractRange
+	 * has no filter, its keys are removed from this one in O(k). complexity: O(n)
+	 */
+	public void enableFilter(int expectedItems, double falsePositiveRate) {
+		compact();
+		this.filter = new MembershipFilter(expectedItems, falsePositiveRate);
+		addToFilterRec(getRoot());
+	}
+
+	/**
+	 * public void disableFilter()
+	 *
+	 * removes the membership filter
+	 */
+	public void disableFilter() {
+		this.filter = null;
+	}
+
+	/**
+	 * public void rebuildFilter()
+	 *
+	 * replaces the membership filter by one sized for the current number of items
+	 * at the same false positive rate, holding only the keys of this tree. Meant
+	 * for use after bulk loads and after split or extractRange. complexity: O(n)
+	 */
+	public void rebuildFilter() {
+		if (this.filter != null) {
+			enableFilter(Math.max(size(), this.filter.expectedItems), this.filter.targetRate);
+		}
+	}
+
+	/**
+	 * public MembershipFilter getFilter()
+	 *
+	 * returns the membership filter, or null if there is none
+	 */
+	public MembershipFilter getFilter() {
+		return this.filter;
+	}
+
+	private void addToFilterRec(IAVLNode node) {
+		if (node != null && node.isRealNode()) {
+			if (!isDeleted(node)) {
+				this.filter.add(node.getKey());
+			}
+			addToFilterRec(node.getLeft());
+			addToFilterRec(node.getRight());
+		}
+	}
+
+	// removes the keys of the subtree of node, which left the tree, from the filter
+	private void removeFromFilterRec(IAVLNode node) {
+		if (node != null && node.isRealNode()) {
+			if (!isDeleted(node)) {
+				this.filter.remove(node.getKey());
+			}
+			removeFromFilterRec(node.getLeft());
+			removeFromFilterRec(node.getRight());
+		}
+	}
+
+	/**
+	 * public void enableValueIndex()
+	 *
+	 * Builds a secondary index from info to the set of keys holding it, kept up
+	 * to date by insert, delete, split, join and extractRange. split gives the
+	 * index to its larger part and rebuilds the one of the smaller part, join
+	 * merges the smaller index into the larger, so both cost O(m log n) for the m
+	 * items of the smaller side. complexity: O(n log n)
+	 */
+	public void enableValueIndex() {
+		compact();
+		this.valueIndex = new ValueIndex();
+		indexRec(getRoot(), this.valueIndex, true);
+	}
+
+	/**
+	 * public void disableValueIndex()
+	 *
+	 * drops the secondary index
+	 */
+	public void disableValueIndex() {
+		this.valueIndex = null;
+	}
+
+	/**
+	 * public int[] keysForValue(String value)
+	 *
+	 * returns the keys of the items whose info equals value, in ascending order.
+	 * precondition: the value index is enabled. complexity: O(log n + k) for k
+	 * keys
+	 */
+	public int[] keysForValue(String value) {
+		checkValueIndex();
+		AVLTree keys = this.valueIndex.keySet(value, false);
+		return keys == null ? new int[0] : keys.keysToArray();
+	}
+
+	/**
+	 * public Iterator<Map.Entry<String, Integer>> valueIterator(String from)
+	 *
+	 * returns the (info, key) pairs with info >= from, or all pairs if from is
+	 * null, ordered by info and then by key. Items with a null info are not
+	 * included. The iterator must not be used after the tree is modified.
+	 * precondition: the value index is enabled. complexity: O(log n) to start and
+	 * O(1) amortized per pair
+	 */
+	public Iterator<Map.Entry<String, Integer>> valueIterator(String from) {
+		checkValueIndex();
+		Iterator<Map.Entry<String, AVLTree>> values = (from == null ? this.valueIndex.keys
+				: this.valueIndex.keys.tailMap(from, true)).entrySet().iterator();
+		return new Iterator<Map.Entry<String, Integer>>() {
+
+			private String value;
+			private int[] keys = new int[0];
+			private int next;
+
+			public boolean hasNext() {
+				while (this.next == this.keys.length && values.hasNext()) {
+					Map.Entry<String, AVLTree> entry = values.next();
+					this.value = entry.getKey();
+					this.keys = entry.getValue().keysToArray();
+					this.next = 0;
+				}
+				return this.next < this.keys.length;
+			}
+
+			public Map.Entry<String, Integer> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return new AbstractMap.SimpleImmutableEntry<>(this.value, this.keys[this.next++]);
+			}
+		};
+	}
+
+	private void checkValueIndex() {
+		if (this.valueIndex == null) {
+			throw new IllegalStateException("the value index is not enabled");
+		}
+	}
+
+	// adds or removes the items of the subtree of node in index
+	private static void indexRec(IAVLNode node, ValueIndex index, boolean add) {
+		if (node != null && node.isRealNode()) {
+			// tombstones left the index when they were deleted
+			if (!isDeleted(node) && add) {
+				index.add(node.getKey(), node.getValue());
+			} else if (!isDeleted(node)) {
+				index.remove(node.getKey(), node.getValue());
+			}
+			indexRec(node.getLeft(), index, add);
+			indexRec(node.getRight(), index, add);
+		}
+	}
+
+	/**
+	 * private void handOverIndex(AVLTree first, AVLTree second)
+	 *
+	 * gives the value index of this tree to the larger of two trees made from its
+	 * items and a new index to the smaller one. complexity: O(m log n) for the m
+	 * items of the smaller tree
+	 */
+	private void handOverIndex(AVLTree first, AVLTree second) {
+		AVLTree smaller = first.size() <= second.size() ? first : second;
+		AVLTree larger = smaller == first ? second : first;
+		ValueIndex index = this.valueIndex;
+		smaller.valueIndex = new ValueIndex();
+		indexRec(smaller.getRoot(), index, false);
+		indexRec(smaller.getRoot(), smaller.valueIndex, true);
+		larger.valueIndex = index;
+	}
 
 	/**
 	 * public boolean empty()
@@ -19,18 +386,223 @@ public class AVLTree {
 	 *
 	 */
 	public boolean empty() {
-		return (this.root == null || this.root.getKey() == -1);
+		return (this.root == null || this.root.getKey() == -1 || tombstonesOf(this.root) == this.root.getSize());
 	}
 
 	/**
 	 * public String search(int k)
 	 *
 	 * returns the info of an item with key k if it exists in the tree otherwise,
-	 * returns null complexity: O(log n)
+	 * returns null. With a membership filter most misses take O(1). complexity:
+	 * O(log n)
 	 * 
 	 */
 	public String search(int k) {
-		return nodeSearch(k).getValue();
+		if (this.rebuilding != null) {
+			swapRebuilt();
+		}
+		if (this.empty() || (this.filter != null && !this.filter.mightContain(k))) {
+			return null;
+		}
+		IAVLNode node = findNode(k);
+		if (this.usageTails != null && node.isRealNode()) {
+			touchUsage((TrackedNode) node);
+		}
+		return node.getValue();
+	}
+
+	/**
+	 * public int searchAll(int[] keys, String[] out)
+	 *
+	 * looks up all keys in one coordinated descent and writes the info of
+	 * keys[i] to out[i], or null if there is no such item. Returns the number of
+	 * keys found. At every node the sorted keys are divided by binary search
+	 * between the two subtrees, so keys sharing a path share its descent. Keys
+	 * that are not sorted are sorted on a copy first. Large batches are resolved
+	 * in parallel, except in LRU and LFU trees where lookups update the usage
+	 * order. Misses allocate nothing. complexity: O(m log(n/m + 1) + m) for m
+	 * sorted keys
+	 */
+	public int searchAll(int[] keys, String[] out) {
+		if (out.length < keys.length) {
+			throw new IllegalArgumentException("out holds " + out.length + " infos for " + keys.length + " keys");
+		}
+		int[] order = null;
+		for (int i = 1; i < keys.length; i++) {
+			if (keys[i - 1] > keys[i]) {
+				order = sortedOrder(keys);
+				break;
+			}
+		}
+		if (this.empty()) {
+			Arrays.fill(out, 0, keys.length, null);
+			return 0;
+		}
+		SearchTask task = new SearchTask(getRoot(), keys, order, out, 0, keys.length);
+		if (this.usageTails != null || keys.length < SEARCH_FORK_SIZE) {
+			return task.searchRec(getRoot(), 0, keys.length);
+		}
+		return task.invoke();
+	}
+
+	/**
+	 * private static int[] sortedOrder(int[] keys)
+	 *
+	 * Returns the indexes of keys ordered by key
+	 */
+	private static int[] sortedOrder(int[] keys) {
+		long[] packed = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			packed[i] = ((long) keys[i] << 32) | i;
+		}
+		Arrays.sort(packed);
+		int[] order = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			order[i] = (int) packed[i];
+		}
+		return order;
+	}
+
+	/**
+	 * private class SearchTask
+	 *
+	 * Resolves positions [from, to) of the sorted keys in the subtree of node.
+	 * order maps sorted positions to indexes of keys and out, null if keys is
+	 * sorted. Batches of at least SEARCH_FORK_SIZE keys fork their two subtrees.
+	 */
+	private class SearchTask extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+		private final IAVLNode node;
+		private final int[] keys;
+		private final int[] order;
+		private final String[] out;
+		private final int from;
+		private final int to;
+
+		SearchTask(IAVLNode node, int[] keys, int[] order, String[] out, int from, int to) {
+			this.node = node;
+			this.keys = keys;
+			this.order = order;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (this.to - this.from < SEARCH_FORK_SIZE || !this.node.isRealNode()) {
+				return searchRec(this.node, this.from, this.to);
+			}
+			int less = firstAtLeast(this.from, this.to, this.node.getKey());
+			int more = firstAtLeast(less, this.to, (long) this.node.getKey() + 1);
+			int found = resolve(this.node, less, more);
+			SearchTask left = new SearchTask(this.node.getLeft(), this.keys, this.order, this.out, this.from, less);
+			SearchTask right = new SearchTask(this.node.getRight(), this.keys, this.order, this.out, more, this.to);
+			right.fork();
+			found += left.compute();
+			return found + right.join();
+		}
+
+		private int searchRec(IAVLNode node, int from, int to) {
+			if (from >= to) {
+				return 0;
+			}
+			if (to - from == 1) {
+				// a single key left, plain descent
+				int k = this.keys[index(from)];
+				while (node.isRealNode() && node.getKey() != k) {
+					node = k < node.getKey() ? node.getLeft() : node.getRight();
+				}
+				if (!node.isRealNode()) {
+					this.out[index(from)] = null;
+					return 0;
+				}
+				return resolve(node, from, to);
+			}
+			if (!node.isRealNode()) {
+				for (int i = from; i < to; i++) {
+					this.out[index(i)] = null;
+				}
+				return 0;
+			}
+			int less = firstAtLeast(from, to, node.getKey());
+			int more = firstAtLeast(less, to, (long) node.getKey() + 1);
+			return resolve(node, less, more) + searchRec(node.getLeft(), from, less)
+					+ searchRec(node.getRight(), more, to);
+		}
+
+		// writes node's info for the positions [from, to) holding its key
+		private int resolve(IAVLNode node, int from, int to) {
+			if (isDeleted(node)) {
+				for (int i = from; i < to; i++) {
+					this.out[index(i)] = null;
+				}
+				return 0;
+			}
+			if (from < to && usageTails != null) {
+				touchUsage((TrackedNode) node);
+			}
+			for (int i = from; i < to; i++) {
+				this.out[index(i)] = node.getValue();
+			}
+			return to - from;
+		}
+
+		// first sorted position in [from, to) whose key is >= x
+		private int firstAtLeast(int from, int to, long x) {
+			while (from < to) {
+				int mid = (from + to) >>> 1;
+				if (this.keys[index(mid)] < x) {
+					from = mid + 1;
+				} else {
+					to = mid;
+				}
+			}
+			return from;
+		}
+
+		private int index(int position) {
+			return this.order == null ? position : this.order[position];
+		}
+	}
+
+	/**
+	 * public int searchBytes(int k, byte[] dst, int offset)
+	 *
+	 * copies the UTF-8 bytes of the info of the item with key k into dst at
+	 * offset and returns their number, or returns -1 if there is no such item.
+	 * Trees backed by a ValueArena copy the bytes without creating a String.
+	 * complexity: O(log n)
+	 */
+	public int searchBytes(int k, byte[] dst, int offset) {
+		IAVLNode node = nodeSearch(k);
+		if (node instanceof ArenaNode) {
+			return this.arena.getBytes(((ArenaNode) node).ref, dst, offset);
+		}
+		if (node.getValue() == null) {
+			return -1;
+		}
+		byte[] bytes = node.getValue().getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, dst, offset, bytes.length);
+		return bytes.length;
+	}
+
+	/**
+	 * public int valueLength(int k)
+	 *
+	 * returns the number of UTF-8 bytes of the info of the item with key k, or -1
+	 * if there is no such item. complexity: O(log n)
+	 */
+	public int valueLength(int k) {
+		IAVLNode node = nodeSearch(k);
+		if (node instanceof ArenaNode) {
+			return this.arena.length(((ArenaNode) node).ref);
+		}
+		if (node.getValue() == null) {
+			return -1;
+		}
+		return node.getValue().getBytes(StandardCharsets.UTF_8).length;
 	}
 
 	/**
@@ -41,10 +613,16 @@ public class AVLTree {
 	 * 
 	 */
 	public IAVLNode nodeSearch(int k) {
-		if (this.empty()) {
+		if (this.empty() || (this.filter != null && !this.filter.mightContain(k))) {
 			return this.factory.createNode();
 		}
-		return nodeSearchRec(getRoot(), k);
+		return findNode(k);
+	}
+
+	// nodeSearch after the filter check
+	private IAVLNode findNode(int k) {
+		IAVLNode node = nodeSearchRec(getRoot(), k);
+		return isDeleted(node) ? this.factory.createNode() : node;
 	}
 
 	/**
@@ -82,17 +660,54 @@ public class AVLTree {
 	 * 
 	 */
 	public int insert(int k, String i) {
+		return insertNode(this.factory.createNode(k, i), k, i);
+	}
+
+	/**
+	 * private int insertNode(IAVLNode newNode, int k, String i)
+	 *
+	 * inserts newNode, a new node with key k and info i, like insert(k, i)
+	 */
+	private int insertNode(IAVLNode newNode, int k, String i) {
+		if (this.rebuilding != null) {
+			swapRebuilt();
+		}
 		// 1st base case: tree is empty. Easy insert.
-		IAVLNode newNode = this.factory.createNode(k, i);
 		if (this.empty()) {
+			// any nodes left are tombstones
+			logChange(k);
 			this.root = newNode;
+			this.minCache = newNode;
+			this.maxCache = newNode;
+			publish(ChangeEvent.Type.INSERT, k, k, i);
+			afterInsert(newNode);
 			return 0;
 		}
 		// 2nd base case: item with key k already exists. No insert
-		if (this.search(k) != null) {
-			return -1;
+		IAVLNode existing = tombstoneCount() > 0 ? nodeSearchRec(getRoot(), k) : nodeSearch(k);
+		if (existing.isRealNode()) {
+			if (!isDeleted(existing)) {
+				return -1;
+			}
+			revive(existing, newNode);
+			return 0;
 		}
+		logChange(k);
 		// otherwise
+		int rebalances = linkNode(newNode, k);
+		publish(ChangeEvent.Type.INSERT, k, k, i);
+		afterInsert(newNode);
+		return rebalances;
+	}
+
+	/**
+	 * private int linkNode(IAVLNode newNode, int k)
+	 *
+	 * links newNode, whose key k is not in the tree, as a leaf and rebalances.
+	 * returns the number of rebalancing operations. precondition: the tree is
+	 * not empty
+	 */
+	private int linkNode(IAVLNode newNode, int k) {
 		IAVLNode father = findPotentialFather(this.root, k);
 		if (k < father.getKey()) {
 			father.setLeft(newNode);
@@ -100,6 +715,12 @@ public class AVLTree {
 			father.setRight(newNode);
 		}
 		newNode.setParent(father);
+		if (this.minCache != null && k < this.minCache.getKey()) {
+			this.minCache = newNode;
+		}
+		if (this.maxCache != null && k > this.maxCache.getKey()) {
+			this.maxCache = newNode;
+		}
 		IAVLNode pointer = newNode.getParent();
 		while (pointer != null) {
 			pointer.setSize(pointer.getSize() + 1);
@@ -109,7 +730,11 @@ public class AVLTree {
 		/*
 		 * System.out.println("before rebalancing"); printTree(root, 0);
 		 */
-		return rebalanceInsert(newNode); // rebalance & update heights
+		int rebalances = rebalanceInsert(newNode); // rebalance & update heights
+		if (this.hashed) {
+			rehashPath(newNode);
+		}
+		return rebalances;
 	}
 
 	/**
@@ -164,7 +789,7 @@ public class AVLTree {
 		// find brother
 		IAVLNode brother = node.getParent().getLeft();
 		boolean iAmLeft = false;
-		if (node.getKey() < node.getParent().getKey()) {
+		if (node.getParent().getLeft().getKey() == node.getKey()) {
 			brother = node.getParent().getRight();
 			iAmLeft = true;
 		}
@@ -211,959 +836,6080 @@ public class AVLTree {
 	 * item with key k was not found in the tree.
 	 */
 	public int delete(int k) {
+		if (this.rebuilding != null) {
+			swapRebuilt();
+		}
 		IAVLNode node = nodeSearch(k);
 		if (!node.isRealNode()) {
 			return -1;
 		}
-		int rebalances = 0;
-		if (this.getRoot().getKey() != k) {
-			IAVLNode parent = node.getParent();
-			boolean right = (parent.getRight().getKey() == node.getKey());
-			// Leaf cases
-			if (isLeaf(node)) {
-				IAVLNode virtual = this.factory.createNode();
-				if (right) {
-					parent.setRight(virtual);
-					parent.getRight().setParent(parent);
-				} else {
-					parent.setLeft(virtual);
-					parent.getLeft().setParent(parent);
-				}
-				
-				if (!isBalanced(parent)) {
-					// if rebalance is needed, send to rebalance, else-send to treeDemotion
-					rebalances = rebalanceDelete(parent);
-				} else {
-					treeResize(parent);
-				}
-			} else {
-				// non-leaf cases
-				if (!node.getRight().isRealNode() || !node.getLeft().isRealNode()) {
-					// one of node sons is a virtual node
-					if (!node.getRight().isRealNode()) {
-						node.getLeft().setParent(parent);
-						if (right) {
-							parent.setRight(node.getLeft());
-							parent.getRight().setParent(parent);
-						} else {
-							parent.setLeft(node.getLeft());
-							parent.getLeft().setParent(parent);
-						}
-					} else {
-						node.getRight().setParent(parent);
-						if (right) {
-							parent.setRight(node.getRight());
-							parent.getRight().setParent(parent);
-						} else {
-							parent.setLeft(node.getRight());
-							parent.getLeft().setParent(parent);
-						}
-					}
-					if (!isBalanced(parent)) {
-						// if rebalance is needed, send to rebalance, else-send to treeDemotion
-						rebalances = rebalanceDelete(parent);
-					} else {
-						treeResize(parent);
-					}
-
-				} else {
-					// using successor to find the replacement of node, then rabalancing the AVL
-					// Tree
-					rebalances = successorBalance(node, right);
-				}
-			}
-		} else {
-			// root cases
-			if (isLeaf(this.getRoot())) {// tree deletion
-				this.setRoot(null);
-			} else {
-				if (!node.getRight().isRealNode() || !node.getLeft().isRealNode()) {
-					// unary tree
-					if (node.getRight().isRealNode()) {
-						this.setRoot(node.getRight());
-						node.getRight().setParent(null);
-					} else {
-						this.setRoot(node.getLeft());
-						node.getLeft().setParent(null);
-					}
-					this.getRoot().setSize(1);
-				} else {// successor replacement is needed
-					rebalances = successorBalance(node, true);
-				}
-			}
-
-		}
-		return rebalances;
-	}
+		return deleteNode(node);
+	}
 
 	/**
-	 * public int successorBalance(IAVLNode node, boolean right)
+	 * private int deleteNode(IAVLNode node)
 	 *
-	 * deletes node and replaces it with it's successor,then rebalances tree returns
-	 * the number of rotations in rebalance. precondition: node has two sons.
-	 * postcondition:tree is balanced
-	 * 
+	 * deletes node from the tree, drops it from the membership filter, the value
+	 * index and the usage order and publishes the deletion. returns the number of
+	 * rebalancing operations. With lazy deletion the node becomes a tombstone
+	 * instead. precondition: node is a real node of this tree
 	 */
-	private int successorBalance(IAVLNode node, boolean right) {
-		int rebalances = 0;
-		IAVLNode successor = successor(node);
-		IAVLNode balancer;
-		if (successor.getParent().getKey() != node.getKey()) {// if successor is not right son of node,
-			// successor original parent bypasses successor, so balance check is needed for
-			// it
-			balancer = successor.getParent();
-			balancer.setLeft(successor.getRight());// successor has no left son
-			successor.getRight().setParent(balancer);
-			successor.setRight(node.getRight());
-			successor.getRight().setParent(successor);
+	private int deleteNode(IAVLNode node) {
+		logChange(node.getKey());
+		((AVLNode) node).generation++;
+		if (this.maxTombstoneRatio > 0) {
+			markDeleted(node);
+			return 0;
 		}
-		else {
-			if(successor.getParent().getKey()!=getRoot().getKey()) {
-				balancer = successor.getParent().getParent();
-			}else {
-				balancer = successor;
-			}
+		int rebalances = removeNode(node);
+		if (this.filter != null) {
+			this.filter.remove(node.getKey());
 		}
-		successor.setLeft(node.getLeft());
-		successor.setParent(node.getParent());
-		successor.getLeft().setParent(successor);
-		successor.setHeight(1 + Math.max(successor.getLeft().getHeight(), successor.getRight().getHeight()));
-		successor.setSize(1+ successor.getLeft().getSize() + successor.getRight().getSize());// size is changed in treeDemotion
-		if (node.getKey()!=this.getRoot().getKey()) {// checking if node has parent or root change needed
-			if (right) {
-				node.getParent().setRight(successor);
-			} else {
-				node.getParent().setLeft(successor);
-			}
-		} else {
-			this.setRoot(successor);
+		if (this.valueIndex != null) {
+			this.valueIndex.remove(node.getKey(), node.getValue());
 		}
-		// if balance of the original parent of the successor is changed,
-		// rebalanceDelete the AVLTree starting from the original parent
-		// else, treeDemote from original parent and return 0
-		if(isBalanced(successor)){
-			if (isBalanced(balancer)) {
-				balancer.setHeight(1 + Math.max(balancer.getLeft().getHeight(), balancer.getRight().getHeight()));
-				treeResize(balancer);
-				return rebalances;
-			} else {
-				return rebalances + rebalanceDelete(balancer);
-			}
-		}else {
-			return rebalances + rebalanceDelete(successor);
+		if (this.usageTails != null) {
+			unlinkUsage((TrackedNode) node);
 		}
+		publish(ChangeEvent.Type.DELETE, node.getKey(), node.getKey(), node.getValue());
+		// marks the node as deleted for handles
+		node.setParent(null);
+		return rebalances;
 	}
 
 	/**
-	 * public private void treeResize(IAVLNode node)
+	 * public void enableLazyDeletion(double maxTombstoneRatio, boolean background)
 	 *
-	 * Updates sizes of tree nodes after deletion
-	 * 
+	 * Makes delete mark nodes as tombstones instead of unlinking and
+	 * rebalancing. Every node counts the tombstones in its subtree next to its
+	 * size, so lookups, size, rank, select, split, join, range operations and
+	 * exports skip tombstones without a rebuild, and the node of an inserted key
+	 * that was deleted takes the place of its tombstone. Once tombstones exceed maxTombstoneRatio of the nodes,
+	 * the tree is rebuilt perfectly balanced from its live nodes in linear time.
+	 * If background, the live nodes are copied into the new tree on the common
+	 * ForkJoinPool and the copy is swapped in by a later search, insert or
+	 * delete, which first applies to it the inserts, deletes and updates made
+	 * meanwhile. If those outnumber the items, the copy is dropped and the next
+	 * rebuild runs in the foreground. split, join, the range deletions and
+	 * replaceAll drop a running rebuild. The trees returned by split and
+	 * extractRange delete lazily as well. Not available for LRU and LFU trees.
 	 */
-	private void treeResize(IAVLNode node) {
-		while (node.getKey() != this.getRoot().getKey()) {
-			node.setSize(node.getSize() - 1);
-			node = node.getParent();
+	public void enableLazyDeletion(double maxTombstoneRatio, boolean background) {
+		if (!(maxTombstoneRatio > 0 && maxTombstoneRatio < 1)) {
+			throw new IllegalArgumentException("ratio must be in (0, 1): " + maxTombstoneRatio);
 		}
-		node.setSize(node.getSize() - 1);
+		if (this.usageTails != null) {
+			throw new IllegalStateException("lazy deletion is not supported by LRU and LFU trees");
+		}
+		this.maxTombstoneRatio = maxTombstoneRatio;
+		this.backgroundRebuild = background;
 	}
 
 	/**
-	 * private int rebalanceDelete(IAVLNode node)
-	 *
+	 * public void disableLazyDeletion()
 	 *
-	 * Returns the number of rotations made to balance tree after a node deletion
-	 * precondition: AVLTree beneath node is not balanced, node is a real node
-	 * postcondition: AVLTree is balanced
-	 * 
+	 * removes all tombstones and makes delete unlink nodes again. complexity: O(n)
 	 */
-	private int rebalanceDelete(IAVLNode node) {
-		int rebalances = 0;
-		boolean isRoot = node.getKey() == this.getRoot().getKey();
-		if (internalRank(node.getRight()) == 2) {
-			// demoting node, 2-2 case
-			node.setHeight(node.getHeight() - 1);
-			node.setSize(node.getSize() - 1);
-			// A balanced parent or root with 1-1
-			if (isRoot || (isBalanced(node.getParent()))) { // if root or father is balanced
-				if (!isRoot) {
-					treeResize(node.getParent());
-				}
-				return 1;
-				// An unbalanced parent case - rebalance
-			} else {
-				rebalances += 1 + rebalanceDelete(node.getParent());
-			}
-		} else {
-			// A 3-1 case - rebalance using rotations
-			if (internalRank(node.getRight()) == 3) {
-				// balance problem is between node and node's right son
-				if (node.getLeft().getLeft().getHeight() == node.getLeft().getRight().getHeight()) {
-					// 2nd option - check if brother is 1-1 node
-					rebalances += rotateRight(node);
-				} else {
-					// 3rd option - check if son's left son has internalRank 1
-					if (internalRank(node.getLeft().getLeft()) == 1) {
-						rebalances += rotateRight(node);
-					} else {
-						// 4th option - if son's left son has internalRank 2, double rotation
-						rebalances += rotateLeft(node.getLeft());
-						rebalances += rotateRight(node);
-					}
-				}
-			} else {
-				
-				// SAME CHECK FOR LEFT SON - balance problem is between node and node's left son
-				// 2nd option - check if brother is 1-1 node
-				
-				if (node.getRight().getLeft().getHeight() == node.getRight().getRight().getHeight()) {
-					rebalances += rotateLeft(node);
+	public void disableLazyDeletion() {
+		compact();
+		this.maxTombstoneRatio = 0;
+	}
 
-				} else {
-					if (internalRank(node.getRight().getRight()) == 1) {
-						// 3rd option - check if son's left son has internalRank 1
-						rebalances += rotateLeft(node);
-					} else {
-						// 4th option - if son's left son has internalRank 2, double rotation
-						rebalances += rotateRight(node.getRight());
-						rebalances += rotateLeft(node);
-					}
-				
-				}
-			}
-			{// if node's original parent subtree is balanced- all tree is balanced
-				// use treeResize to update nodes height and size,
-				// else - rebalance the original parent subtree
-			}
-			if (isRoot || isBalanced(node.getParent().getParent())) {
-				if (!isRoot) {// else,size changed in rotation up to root
-					treeResize(node.getParent().getParent());
-				}
-			} else {
-				rebalances += rebalanceDelete(node.getParent().getParent());
-			}
-		}
-		return rebalances;
+	/**
+	 * public int tombstoneCount()
+	 *
+	 * returns the number of lazily deleted nodes still in the tree
+	 */
+	public int tombstoneCount() {
+		return tombstonesOf(this.root);
 	}
 
 	/**
-	 * private IAVLNode minNode()
+	 * public void compact()
 	 *
-	 * Returns the item with the smallest key in the tree, or null if the tree is
-	 * empty
+	 * rebuilds the tree without its tombstones now, in the foreground. Handles of
+	 * live items stay valid. complexity: O(n)
 	 */
-	private IAVLNode minNode(IAVLNode node) {
-		if (!node.isRealNode()) {
-			return null;
+	public void compact() {
+		if (this.rebuilding != null) {
+			swapRebuilt();
 		}
-		IAVLNode minNode = node;
-		while (minNode.getLeft().getKey() != -1) {
-			minNode = minNode.getLeft();
+		cancelRebuild();
+		if (tombstoneCount() > 0) {
+			IAVLNode[] live = liveNodes();
+			setRoot(link(live, 0, live.length, null));
+			resetExtremes();
 		}
-		return minNode;
 	}
 
 	/**
-	 * public String min()
+	 * private void markDeleted(IAVLNode node)
 	 *
-	 * Returns the info of the item with the smallest key in the tree, or null if
-	 * the tree is empty
+	 * deletes node lazily by turning it into a tombstone, and starts a rebuild
+	 * when there are too many. complexity: O(log n)
 	 */
-	public String min() {
-		if (this.empty()) {
-			return null;
+	private void markDeleted(IAVLNode node) {
+		if (this.filter != null) {
+			this.filter.remove(node.getKey());
+		}
+		if (this.valueIndex != null) {
+			this.valueIndex.remove(node.getKey(), node.getValue());
+		}
+		publish(ChangeEvent.Type.DELETE, node.getKey(), node.getKey(), node.getValue());
+		// the cached extremes move to the nearest live node
+		if (node == this.minCache) {
+			this.minCache = nextLive(node, true);
+		}
+		if (node == this.maxCache) {
+			this.maxCache = nextLive(node, false);
+		}
+		((AVLNode) node).setValue(DELETED);
+		recountPath(node);
+		if (this.hashed) {
+			rehashPath(node);
+		}
+		if (tombstoneCount() > this.maxTombstoneRatio * getRoot().getSize()) {
+			if (this.backgroundRebuild && !this.rebuildInForeground) {
+				if (this.rebuilding == null) {
+					startRebuild();
+				}
+			} else {
+				this.rebuildInForeground = false;
+				compact();
+			}
 		}
-		IAVLNode thisNode = getRoot();
-		return minNode(thisNode).getValue();
 	}
 
 	/**
-	 * private IAVLNode maxNode()
+	 * private void revive(IAVLNode tombstone, IAVLNode node)
 	 *
-	 * Returns the item with the largest key in the tree, or null if the tree is
-	 * empty
+	 * inserts node, a new node with the key of tombstone, in the place of
+	 * tombstone. The tombstone is left unlinked, so its handles stay invalid.
+	 * complexity: O(log n)
 	 */
-	public IAVLNode maxNode(IAVLNode node) {
-		if (!node.isRealNode()) {
-			return null;
+	private void revive(IAVLNode tombstone, IAVLNode node) {
+		logChange(node.getKey());
+		IAVLNode parent = tombstone.getParent();
+		node.setLeft(tombstone.getLeft());
+		node.getLeft().setParent(node);
+		node.setRight(tombstone.getRight());
+		node.getRight().setParent(node);
+		node.setHeight(tombstone.getHeight());
+		node.setSize(tombstone.getSize());
+		node.setParent(parent);
+		if (parent == null) {
+			setRoot(node);
+		} else if (parent.getLeft() == tombstone) {
+			parent.setLeft(node);
+		} else {
+			parent.setRight(node);
 		}
-		IAVLNode maxNode = node;
-		while (maxNode.getRight().getKey() != -1) {
-			maxNode = maxNode.getRight();
+		tombstone.setParent(null);
+		recountPath(node);
+		if (this.hashed) {
+			rehashPath(node);
 		}
-		return maxNode;
+		if (this.minCache != null && node.getKey() < this.minCache.getKey()) {
+			this.minCache = node;
+		}
+		if (this.maxCache != null && node.getKey() > this.maxCache.getKey()) {
+			this.maxCache = node;
+		}
+		publish(ChangeEvent.Type.INSERT, node.getKey(), node.getKey(), node.getValue());
+		afterInsert(node);
 	}
 
 	/**
-	 * public String max()
+	 * private void startRebuild()
 	 *
-	 * Returns the info of the item with the largest key in the tree, or null if the
-	 * tree is empty
+	 * collects the live nodes and copies them into a balanced tree on the common
+	 * ForkJoinPool. Only the factory is used off this thread.
 	 */
-	public String max() {
-		if (this.empty()) {
-			return null;
-		}
-		IAVLNode thisNode = getRoot();
-		return maxNode(thisNode).getValue();
+	private void startRebuild() {
+		IAVLNode[] live = liveNodes();
+		this.rebuildLog = new int[16];
+		this.rebuildLogSize = 0;
+		this.rebuilding = CompletableFuture.supplyAsync(() -> {
+			IAVLNode[] copies = new IAVLNode[live.length];
+			for (int i = 0; i < live.length; i++) {
+				copies[i] = this.factory.createNode(live[i]);
+			}
+			return link(copies, 0, copies.length, null);
+		});
 	}
 
 	/**
-	 * public IAVLNode successor(IAVLNode node)
+	 * private void swapRebuilt()
 	 *
-	 * Returns the item with the next key in the tree, or null if this node is the
-	 * maximum node
+	 * swaps in a finished background rebuild, after applying to it the changes
+	 * logged since it started. The new nodes are copies, so all handles become
+	 * invalid. complexity: O(k log n) for k logged changes
 	 */
-	private IAVLNode successor(IAVLNode node) {
-		if (node.getRight().isRealNode()) {
-			return minNode(node.getRight());
-		} else {
-			IAVLNode thisNode = node;
-			while (thisNode.getKey() != getRoot().getKey()) {
-				if (thisNode.getParent().getLeft().getKey() == thisNode.getKey()) {
-					return thisNode.getParent();
-				}
-				thisNode = thisNode.getParent();
-			}
-			return null;
+	private void swapRebuilt() {
+		if (!this.rebuilding.isDone()) {
+			return;
+		}
+		CompletableFuture<IAVLNode> done = this.rebuilding;
+		int[] log = this.rebuildLog;
+		int logSize = this.rebuildLogSize;
+		this.rebuilding = null;
+		this.rebuildLog = null;
+		if (done.isCompletedExceptionally()) {
+			this.rebuildInForeground = true;
+			return;
 		}
+		IAVLNode current = getRoot();
+		setRoot(done.join());
+		for (int i = 0; i < logSize; i++) {
+			replayChange(current, log[i]);
+		}
+		resetExtremes();
+		invalidateHandles();
 	}
 
 	/**
-	 * public private void rotateRight (IAVLNode node)
+	 * private void replayChange(IAVLNode current, int k)
 	 *
-	 * Rotates the tree right, like the algorithm learned in class
+	 * makes the item with key k of the rebuilt tree match the one in the subtree
+	 * of current, the tree it replaces. The item is set even if it seems equal,
+	 * since the copy may have been taken while it changed.
 	 */
-	private int rotateRight(IAVLNode node) {
-		int rebalances = 1;
-		IAVLNode axis = node.getLeft();
-		node.setLeft(axis.getRight());
-		axis.setParent(node.getParent());
-		axis.setRight(node);
-		if (node.getKey() == this.getRoot().getKey()) {// root rotation
-			this.setRoot(axis);
-		} else {
-
-			if (node.getParent().getLeft().getKey() == node.getKey()) {// non root rotation
-				node.getParent().setLeft(axis);
-			} else {
-				node.getParent().setRight(axis);
+	private void replayChange(IAVLNode current, int k) {
+		IAVLNode item = nodeSearchRec(current, k);
+		boolean live = item.isRealNode() && !isDeleted(item);
+		IAVLNode copy = nodeSearchRec(getRoot(), k);
+		if (!copy.isRealNode()) {
+			if (live && !getRoot().isRealNode()) {
+				setRoot(this.factory.createNode(item));
+			} else if (live) {
+				linkNode(this.factory.createNode(item), k);
 			}
+			return;
 		}
-		node.setParent(axis);
-		node.getLeft().setParent(node);
-		int nodeHightBefore = node.getHeight();
-		node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1);
-		if (nodeHightBefore != node.getHeight()) { // if node was demoted/promoted
-			rebalances += Math.abs(nodeHightBefore - node.getHeight());
+		boolean wasLive = !isDeleted(copy);
+		if (!live) {
+			((AVLNode) copy).setValue(DELETED);
+		} else if (item instanceof ArenaNode && copy instanceof ArenaNode) {
+			// same arena, the bytes are shared rather than copied
+			((ArenaNode) copy).ref = ((ArenaNode) item).ref;
+		} else {
+			((AVLNode) copy).setValue(item.getValue());
 		}
-		node.setSize(1 + node.getLeft().getSize() + node.getRight().getSize());
-		int axisHightBefore = axis.getHeight();
-		axis.setHeight(Math.max(axis.getLeft().getHeight(), axis.getRight().getHeight()) + 1);
-		if (axisHightBefore != axis.getHeight()) { // if axis was demoted/promoted
-			rebalances += Math.abs(axisHightBefore - axis.getHeight());
+		if (live != wasLive) {
+			recountPath(copy);
+		}
+		if (this.hashed) {
+			rehashPath(copy);
 		}
-		axis.setSize(1 + axis.getLeft().getSize() + axis.getRight().getSize());
-		return rebalances;
 	}
 
 	/**
-	 * public private void rotateLeft (IAVLNode node)
+	 * private void logChange(int k)
 	 *
-	 * Rotates the tree left, like the algorithm learned in class
+	 * records a change of the item with key k for the running rebuild. Once the
+	 * changes outnumber the items, replaying them would cost more than a new
+	 * rebuild, so the running one is dropped for one in the foreground.
 	 */
-	private int rotateLeft(IAVLNode node) {
-		int rebalances = 1;
-		IAVLNode axis = node.getRight();
-		node.setRight(axis.getLeft());
-		axis.setParent(node.getParent());
-		axis.setLeft(node);
-		if (node.getKey() == this.getRoot().getKey()) {// root rotation
-			this.setRoot(axis);
-		} else {
-
-			if (node.getParent().getLeft().getKey() == node.getKey()) {// non root rotation
-				node.getParent().setLeft(axis);
-			} else {
-				node.getParent().setRight(axis);
+	private void logChange(int k) {
+		if (this.rebuilding == null) {
+			return;
+		}
+		if (this.rebuildLogSize == this.rebuildLog.length) {
+			if (this.rebuildLogSize > size()) {
+				cancelRebuild();
+				this.rebuildInForeground = true;
+				return;
 			}
+			this.rebuildLog = Arrays.copyOf(this.rebuildLog, this.rebuildLogSize * 2);
 		}
-		node.setParent(axis);
-		node.getRight().setParent(node);
-		int nodeHightBefore = node.getHeight();
-		node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1);
-		if (nodeHightBefore != node.getHeight()) { // if node was demoted/promoted
-			rebalances += Math.abs(nodeHightBefore - node.getHeight());
+		this.rebuildLog[this.rebuildLogSize++] = k;
+	}
+
+	// drops a running rebuild, before a change its log cannot describe
+	private void cancelRebuild() {
+		if (this.rebuilding != null) {
+			this.rebuilding.cancel(false);
+			this.rebuilding = null;
+			this.rebuildLog = null;
 		}
-		node.setSize(1 + node.getLeft().getSize() + node.getRight().getSize());
-		int axisHightBefore = node.getHeight();
-		axis.setHeight(Math.max(axis.getLeft().getHeight(), axis.getRight().getHeight()) + 1);
-		if (axisHightBefore != axis.getHeight()) { // if axis was demoted/promoted
-			rebalances += Math.abs(axisHightBefore - axis.getHeight());
+	}
+
+	// the live nodes in key order
+	private IAVLNode[] liveNodes() {
+		IAVLNode[] live = new IAVLNode[size()];
+		collectLive(getRoot(), live, 0);
+		return live;
+	}
+
+	private int collectLive(IAVLNode node, IAVLNode[] live, int at) {
+		if (node == null || !node.isRealNode()) {
+			return at;
 		}
-		axis.setSize(1 + axis.getLeft().getSize() + axis.getRight().getSize());
-		return rebalances;
+		at = collectLive(node.getLeft(), live, at);
+		if (!isDeleted(node)) {
+			live[at++] = node;
+		}
+		return collectLive(node.getRight(), live, at);
 	}
 
 	/**
-	 * public int[] keysToArray()
+	 * private IAVLNode link(IAVLNode[] nodes, int from, int to, IAVLNode parent)
 	 *
-	 * Returns a sorted array which contains all keys in the tree, or an empty array
-	 * if the tree is empty.
+	 * links nodes[from, to), sorted by key, into a perfectly balanced subtree
+	 * under parent and returns its root. Sibling sizes differ by at most one, so
+	 * sibling heights do as well. complexity: O(to - from)
 	 */
-	public int[] keysToArray() {
-		if (this.root == null) {
-			int[] emptyArr = {};
-			return emptyArr;
+	private IAVLNode link(IAVLNode[] nodes, int from, int to, IAVLNode parent) {
+		if (from >= to) {
+			IAVLNode virtual = this.factory.createNode();
+			virtual.setParent(parent);
+			return virtual;
 		}
-		int[] arr = new int[this.root.getSize()];
-		IAVLNode thisNode = minNode(getRoot());
-		for (int i = 0; i < arr.length; i++) {
-			arr[i] = thisNode.getKey();
-			thisNode = successor(thisNode);
+		int mid = (from + to) >>> 1;
+		IAVLNode node = nodes[mid];
+		node.setParent(parent);
+		node.setLeft(link(nodes, from, mid, node));
+		node.setRight(link(nodes, mid + 1, to, node));
+		node.setHeight(1 + Math.max(node.getLeft().getHeight(), node.getRight().getHeight()));
+		node.setSize(to - from);
+		updateHash(node);
+		updateTombstones(node);
+		return node;
+	}
+
+	/**
+	 * private IAVLNode nextLive(IAVLNode node, boolean forward)
+	 *
+	 * returns the nearest node after node, or before it if not forward, that is
+	 * not a tombstone, or null if there is none
+	 */
+	private IAVLNode nextLive(IAVLNode node, boolean forward) {
+		do {
+			node = forward ? successor(node) : predecessor(node);
+		} while (node != null && isDeleted(node));
+		return node;
+	}
+
+	// true if node is a tombstone, also once a rebuild dropped it from the tree
+	private static boolean isDeleted(IAVLNode node) {
+		return ((AVLNode) node).isDeleted();
+	}
+
+	// the number of tombstones in the subtree of node
+	private static int tombstonesOf(IAVLNode node) {
+		return node == null ? 0 : ((AVLNode) node).tombstones;
+	}
+
+	// the number of items in the subtree of node that are not tombstones
+	private static int liveSize(IAVLNode node) {
+		return node.getSize() - tombstonesOf(node);
+	}
+
+	// recomputes the tombstone count of node from its sons
+	private static void updateTombstones(IAVLNode node) {
+		((AVLNode) node).tombstones = tombstonesOf(node.getLeft()) + tombstonesOf(node.getRight())
+				+ (isDeleted(node) ? 1 : 0);
+	}
+
+	// recomputes the tombstone counts from node up to the root
+	private static void recountPath(IAVLNode node) {
+		while (node != null) {
+			updateTombstones(node);
+			node = node.getParent();
 		}
-		return arr;
 	}
 
 	/**
-	 * public String[] infoToArray()
+	 * public Handle insertHandle(int k, String i)
 	 *
-	 * Returns an array which contains all info in the tree, sorted by their
-	 * respective keys, or an empty array if the tree is empty.
+	 * inserts an item like insert(k, i) and returns a handle to its node, or null
+	 * if a live item with key k already exists or the new item was evicted at
+	 * once. With lazy deletion, a key whose item was deleted counts as absent:
+	 * the new node takes the place of the tombstone and its handle is returned,
+	 * while handles of the deleted item stay invalid.
+	 * The handle stays valid through rotations, deletes of other items and join,
+	 * where handles of the joined tree move to this tree. split, extractRange and
+	 * deleteRange copy the nodes on their paths, so they invalidate all handles of
+	 * the tree. complexity: O(log n)
 	 */
-	public String[] infoToArray() {
-		if (this.root == null) {
-			String[] emptyArr = {};
-			return emptyArr;
+	public Handle insertHandle(int k, String i) {
+		IAVLNode node = this.factory.createNode(k, i);
+		if (insertNode(node, k, i) < 0) {
+			return null;
 		}
-		String[] arr = new String[this.getRoot().getSize()];
-		IAVLNode thisNode = minNode(getRoot());
-		for (int i = 0; i < arr.length; i++) {
-			arr[i] = thisNode.getValue();
-			thisNode = successor(thisNode);
+		if (this.handles == null) {
+			this.handles = new HandleScope(this);
 		}
-		return arr;
+		Handle handle = new Handle(node, this.handles);
+		return isValid(handle) ? handle : null;
 	}
 
 	/**
-	 * public int size()
-	 *
-	 * Returns the number of nodes in the tree.
+	 * public boolean isValid(Handle handle)
 	 *
-	 * precondition: none postcondition: none
+	 * returns true if handle refers to an item that is still in this tree. A
+	 * node that was deleted since the handle was taken never makes it valid
+	 * again, even if the node itself is linked back, e.g. by join.
+	 * complexity: O(1) amortized
 	 */
-	public int size() {
-		if (this.root == null) {
-			return 0;
+	public boolean isValid(Handle handle) {
+		HandleScope scope = handle.scope;
+		while (scope.forward != null) {
+			scope = scope.forward;
 		}
-		return this.root.getSize();
+		handle.scope = scope;
+		IAVLNode node = handle.node;
+		return scope.tree == this && handle.generation == ((AVLNode) node).generation
+				&& (node.getParent() != null || node == this.root) && !isDeleted(node);
 	}
 
 	/**
-	 * public IAVLNode getRoot()
-	 *
-	 * Returns the root AVL node, or null if the tree is empty
+	 * public int delete(Handle handle)
 	 *
-	 * precondition: none postcondition: none
+	 * deletes the item of handle like delete(k) but without searching for it.
+	 * returns the number of rebalancing operations. complexity: O(log n) for the
+	 * rebalancing only
 	 */
-	public IAVLNode getRoot() {
-		return this.root;
+	public int delete(Handle handle) {
+		return deleteNode(checkHandle(handle));
 	}
 
 	/**
-	 * public void setRoot(IAVLNode)
+	 * public String setValue(Handle handle, String value)
 	 *
-	 * sets the root of the tree to be node.
-	 *
-	 * precondition: none postcondition: none
+	 * replaces the info of the item of handle in place and returns the old one.
+	 * The shape of the tree does not change. complexity: O(1), O(log n) with
+	 * subtree hashes or a value index
 	 */
-	private void setRoot(IAVLNode node) {
-		this.root = node;
+	public String setValue(Handle handle, String value) {
+		return replaceValue(checkHandle(handle), value);
 	}
 
 	/**
-	 * private boolean isLeaf(IAVLNode node)
-	 *
-	 * Returns True if the IAVLNode is a leaf
+	 * public Handle successor(Handle handle)
 	 *
-	 * precondition: none postcondition: none
+	 * returns a handle to the item with the next key, or null if the item of
+	 * handle has the largest key. complexity: O(log n), O(1) amortized over an
+	 * in-order walk
 	 */
-
-	private boolean isLeaf(IAVLNode node) {
-		if (node.getLeft().isRealNode() || node.getRight().isRealNode()) {
-			return false;
-		}
-		return true;
-
+	public Handle successor(Handle handle) {
+		IAVLNode next = nextLive(checkHandle(handle), true);
+		return next == null ? null : new Handle(next, this.handles);
 	}
 
 	/**
-	 * private int internalRank(IAVLNode node)
-	 *
-	 * Returns the difference in height between node and it's parent If node has no
-	 * parent (is root) returns 0
+	 * public int rank(Handle handle)
 	 *
-	 * precondition: none postcondition: none
+	 * returns the number of keys smaller than the key of handle's item, found by
+	 * walking up from its node. complexity: O(log n)
 	 */
+	public int rank(Handle handle) {
+		IAVLNode node = checkHandle(handle);
+		int rank = liveSize(node.getLeft());
+		while (node.getParent() != null) {
+			IAVLNode parent = node.getParent();
+			if (parent.getRight() == node) {
+				rank += liveSize(parent.getLeft()) + (isDeleted(parent) ? 0 : 1);
+			}
+			node = parent;
+		}
+		return rank;
+	}
 
-	private int internalRank(IAVLNode node) {
-		if (getRoot().getKey() != node.getKey()) {
-			return node.getParent().getHeight() - node.getHeight();
+	private IAVLNode checkHandle(Handle handle) {
+		if (!isValid(handle)) {
+			throw new IllegalArgumentException("handle of key " + handle.node.getKey() + " is no longer valid");
 		}
-		return 0;
+		return handle.node;
 	}
 
 	/**
-	 * private boolean isBalanced(IAVLNode node)
-	 *
-	 * Returns true if the IAVLNode node is balanced, false else
+	 * public int replaceAll(int lo, int hi, IntObjFunction<String, String> function)
 	 *
-	 * precondition: none postcondition: none
+	 * Replaces the info of every item with key in [lo, hi] by function.apply(key,
+	 * info), in place, without changing the shape of the tree. Returns the number
+	 * of items replaced. Subtrees of at least REPLACE_FORK_SIZE nodes are
+	 * processed in parallel on the common ForkJoinPool, so function must be safe
+	 * to call from several threads. Trees with a value index, a value arena, a
+	 * usage order or a change publisher are processed sequentially through the
+	 * same path as setValue, since none of those is thread safe. If function
+	 * throws, the items done so far keep their new infos. complexity: O(log n + k)
+	 * for k replaced items
 	 */
+	public int replaceAll(int lo, int hi, IntObjFunction<String, String> function) {
+		if (this.empty() || lo > hi) {
+			return 0;
+		}
+		cancelRebuild();
+		if (this.valueIndex != null || this.arena != null || this.usageTails != null || this.changes != null) {
+			return replaceRange(getRoot(), lo, hi, function);
+		}
+		return new ReplaceTask(getRoot(), lo, hi, function).invoke();
+	}
 
-	private boolean isBalanced(IAVLNode node) {
+	private int replaceRange(IAVLNode node, int lo, int hi, IntObjFunction<String, String> function) {
 		if (!node.isRealNode()) {
-			return true;
+			return 0;
 		}
-		if (internalRank(node.getLeft()) == 1 && internalRank(node.getRight()) == 1) {
-			return true;
+		int count = 0;
+		if (node.getKey() > lo) {
+			count += replaceRange(node.getLeft(), lo, hi, function);
 		}
-		if (internalRank(node.getLeft()) == 2 && internalRank(node.getRight()) == 1) {
-			return true;
+		if (node.getKey() >= lo && node.getKey() <= hi && !isDeleted(node)) {
+			replaceValue(node, function.apply(node.getKey(), node.getValue()));
+			count++;
 		}
-		if (internalRank(node.getLeft()) == 1 && internalRank(node.getRight()) == 2) {
-			return true;
+		if (node.getKey() < hi) {
+			count += replaceRange(node.getRight(), lo, hi, function);
 		}
-		return false;
+		return count;
 	}
 
 	/**
-	 * public string split(int x)
+	 * private String replaceValue(IAVLNode node, String value)
 	 *
-	 * splits the tree into 2 trees according to the key x. Returns an array [t1,
-	 * t2] with two AVL trees. keys(t1) < x < keys(t2). precondition: search(x) !=
-	 * null postcondition: none
+	 * sets the info of node, updating the value index, the subtree hashes and the
+	 * usage order, and returns the old info
 	 */
-	public AVLTree[] split(int x) {
-		AVLTree[] splitTrees = new AVLTree[2];
-		IAVLNode splitNode = nodeSearch(x); // precondition is that x exists
-		AVLTree lessTree = new AVLTree();
-		lessTree.root = splitNode.getLeft();
-		lessTree.root.setParent(null);
-		AVLTree moreTree = new AVLTree();
-		moreTree.root = splitNode.getRight();
-		moreTree.root.setParent(null);
-		IAVLNode thisNode = splitNode.getParent();
-		int cameFrom = splitNode.getKey();
-		while (thisNode != null) {
-			AVLTree addTree = new AVLTree();
-			if (thisNode.getLeft().getKey() == cameFrom) { // if went up right
-				addTree.root = thisNode.getRight();
-				addTree.root.setParent(null);
-				moreTree.join(this.factory.createNode(thisNode.getKey(), thisNode.getValue()), addTree);
-			}
-			if (thisNode.getRight().getKey() == cameFrom) { // if went up left
-				addTree.root = thisNode.getLeft();
-				addTree.root.setParent(null);
-				lessTree.join(this.factory.createNode(thisNode.getKey(), thisNode.getValue()), addTree);
-			}
-			cameFrom = thisNode.getKey();
-			thisNode = thisNode.getParent();
-
+	private String replaceValue(IAVLNode node, String value) {
+		logChange(node.getKey());
+		String old = node.getValue();
+		if (this.valueIndex != null) {
+			this.valueIndex.remove(node.getKey(), old);
+			this.valueIndex.add(node.getKey(), value);
 		}
-		splitTrees[0] = lessTree;
-		splitTrees[1] = moreTree;
-		return splitTrees;
+		((AVLNode) node).setValue(value);
+		if (this.hashed) {
+			rehashPath(node);
+		}
+		if (this.usageTails != null) {
+			touchUsage((TrackedNode) node);
+		}
+		publish(ChangeEvent.Type.UPDATE, node.getKey(), node.getKey(), value);
+		return old;
 	}
 
-	// -----------------------------------------------------------------------------------------------
-
 	/**
-	 * public string exSplit(int x)
+	 * private void invalidateHandles()
 	 *
-	 * splits the tree into 2 trees according to the key x. Returns an array [t1,
-	 * t2] with two AVL trees. keys(t1) < x < keys(t2). precondition: search(x) !=
-	 * null postcondition: none
+	 * invalidates all handles of this tree and of the trees joined into it
 	 */
-	public int[] exSplit(int x) {
-		int complexityJoins = 0;
-		int moneJoins = 0;
-		int maxComplexityJoin = 0;
-		IAVLNode splitNode = nodeSearch(x); // precondition is that x exists
-		AVLTree lessTree = new AVLTree();
-		lessTree.root = splitNode.getLeft();
-		lessTree.root.setParent(null);
-		AVLTree moreTree = new AVLTree();
-		moreTree.root = splitNode.getRight();
-		moreTree.root.setParent(null);
-		IAVLNode thisNode = splitNode.getParent();
-		int cameFrom = splitNode.getKey();
-		while (thisNode != null) {
-			AVLTree addTree = new AVLTree();
-			if (thisNode.getLeft().getKey() == cameFrom) { // if went up right
-				addTree.root = thisNode.getRight();
-				addTree.root.setParent(null);
-				int thisJoin;
-				thisJoin = moreTree.join(this.factory.createNode(thisNode.getKey(), thisNode.getValue()), addTree);
-				complexityJoins += thisJoin;
-				moneJoins++;
-				if (maxComplexityJoin < thisJoin) {
-					maxComplexityJoin = thisJoin;
-				}
-			}
-			if (thisNode.getRight().getKey() == cameFrom) { // if went up left
-				addTree.root = thisNode.getLeft();
-				addTree.root.setParent(null);
-				int thisJoin = lessTree.join(this.factory.createNode(thisNode.getKey(), thisNode.getValue()), addTree);
-				complexityJoins += thisJoin;
-				moneJoins++;
-				if (maxComplexityJoin < thisJoin) {
-					maxComplexityJoin = thisJoin;
-				}
-			}
-			cameFrom = thisNode.getKey();
-			thisNode = thisNode.getParent();
-
+	private void invalidateHandles() {
+		if (this.handles != null) {
+			this.handles.tree = null;
+			this.handles = null;
 		}
-		int[] results = { complexityJoins, moneJoins, maxComplexityJoin };
-		return results;
 	}
 
-	// -----------------------------------------------------------------------------------------------
-
 	/**
-	 * public join(IAVLNode x, AVLTree t)
+	 * private int removeNode(IAVLNode node)
 	 *
-	 * joins t and x with the tree. Returns the complexity of the operation (rank
-	 * difference + 1 between the tree and t) precondition: keys(x,t) < keys() or
-	 * keys(x,t) > keys() postcondition: none
+	 * unlinks node from the tree and rebalances it, returns the number of
+	 * rebalancing operations. precondition: node is a real node of this tree
 	 */
-	public int join(IAVLNode x, AVLTree t) {
-		if (t.empty()) {
-			if (!this.empty()) {
-				// if received empty tree and this is not empty - recursively call join
-				return join(x, this, t);
+	private int removeNode(IAVLNode node) {
+		int rebalances = 0;
+		// the lowest node whose subtree loses an item, hashes and tombstone counts
+		// are recomputed upwards from it once the tree is rebalanced
+		IAVLNode changed = null;
+		boolean recount = tombstoneCount() > 0;
+		if (this.hashed || recount) {
+			if (node.getLeft().isRealNode() && node.getRight().isRealNode()) {
+				IAVLNode successor = successor(node);
+				changed = successor.getParent() == node ? successor : successor.getParent();
 			} else {
-				// if both empty - return tree with root
-				this.setRoot(x);
-				return 1;
+				changed = node.getParent();
 			}
 		}
-		if (this.empty()) {
-			// if // if received tree empty and received is not empty - recursively call
-			// join
-			return join(x, t, this);
-		}
-		int operations = 0;
-		AVLTree big;
-		AVLTree small;
-		// if heights of this and t are equal - make x root of joined tree
-		if (this.getRoot().getHeight() == t.getRoot().getHeight()) {
-			if (this.getRoot().getKey() > t.getRoot().getKey()) {
-				x.setLeft(t.getRoot());
-				x.setRight(this.getRoot());
-			} else {
-				x.setLeft(this.getRoot());
-				x.setRight(t.getRoot());
-			}
-			x.getLeft().setParent(x);
-			x.getRight().setParent(x);
-			x.setHeight(this.getRoot().getHeight() + 1);
-			x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
-			this.setRoot(x);
-			return 1;
+		// the minimum has no left son, its successor is its right son or parent
+		if (node == this.minCache) {
+			this.minCache = node.getRight().isRealNode() ? minNode(node.getRight()) : node.getParent();
 		}
-		// check which tree has bigger height and recursive call join when bigger tree
-		// is big
-		if (this.getRoot().getHeight() > t.getRoot().getHeight()) {
-			big = this;
-			small = t;
-		} else {
-			big = t;
-			small = this;
+		if (node == this.maxCache) {
+			this.maxCache = node.getLeft().isRealNode() ? maxNode(node.getLeft()) : node.getParent();
 		}
-		operations = join(x, big, small);
-		return operations;
-	}
-
-	private int join(IAVLNode x, AVLTree big, AVLTree small) {
-
-		int operations = 0;
-		IAVLNode pointer = big.getRoot();
-		if (big.getRoot().getKey() > x.getKey()) {// bigger tree has bigger keys
-			// insert x as root of small tree with small keys and calculate operations
-			if (small.empty()) {
-				operations = big.getRoot().getHeight();
-			} else {
-				operations = big.getRoot().getHeight() - small.getRoot().getHeight();
-				small.getRoot().setParent(x);
-				x.setLeft(small.getRoot());
-				x.setHeight(small.getRoot().getHeight() + 1);
+		if (this.getRoot().getKey() != node.getKey()) {
+			IAVLNode parent = node.getParent();
+			boolean right = (parent.getRight().getKey() == node.getKey());
+			// Leaf cases
+			if (isLeaf(node)) {
+				IAVLNode virtual = this.factory.createNode();
+				if (right) {
+					parent.setRight(virtual);
+					parent.getRight().setParent(parent);
+				} else {
+					parent.setLeft(virtual);
+					parent.getLeft().setParent(parent);
+				}
+				
+				if (!isBalanced(parent)) {
+					// if rebalance is needed, send to rebalance, else-send to treeDemotion
+					rebalances = rebalanceDelete(parent);
+				} else {
+					treeResize(parent);
+				}
+			} else {
+				// non-leaf cases
+				if (!node.getRight().isRealNode() || !node.getLeft().isRealNode()) {
+					// one of node sons is a virtual node
+					if (!node.getRight().isRealNode()) {
+						node.getLeft().setParent(parent);
+						if (right) {
+							parent.setRight(node.getLeft());
+							parent.getRight().setParent(parent);
+						} else {
+							parent.setLeft(node.getLeft());
+							parent.getLeft().setParent(parent);
+						}
+					} else {
+						node.getRight().setParent(parent);
+						if (right) {
+							parent.setRight(node.getRight());
+							parent.getRight().setParent(parent);
+						} else {
+							parent.setLeft(node.getRight());
+							parent.getLeft().setParent(parent);
+						}
+					}
+					if (!isBalanced(parent)) {
+						// if rebalance is needed, send to rebalance, else-send to treeDemotion
+						rebalances = rebalanceDelete(parent);
+					} else {
+						treeResize(parent);
+					}
+
+				} else {
+					// using successor to find the replacement of node, then rabalancing the AVL
+					// Tree
+					rebalances = successorBalance(node, right);
+				}
 			}
-			small.setRoot(x);
-			// if big tree is a leaf, make x root
-			if (big.getRoot().getHeight() == 0) {
-				big.setRoot(x);
+		} else {
+			// root cases
+			if (isLeaf(this.getRoot())) {// tree deletion
+				this.setRoot(null);
 			} else {
-				while (pointer.getHeight() >= small.getRoot().getHeight()) {
-					pointer = pointer.getLeft();
+				if (!node.getRight().isRealNode() || !node.getLeft().isRealNode()) {
+					// unary tree
+					if (node.getRight().isRealNode()) {
+						this.setRoot(node.getRight());
+						node.getRight().setParent(null);
+					} else {
+						this.setRoot(node.getLeft());
+						node.getLeft().setParent(null);
+					}
+					this.getRoot().setSize(1);
+				} else {// successor replacement is needed
+					rebalances = successorBalance(node, true);
 				}
 			}
 
-			// joining x with big
-			x.setRight(pointer);
-			x.setParent(pointer.getParent());
-			x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
-			pointer.setParent(x);
-			if (x.getParent() != null) {
-				x.getParent().setLeft(x);
-				// A 0-2 case, rotate to rebalance
-				if (big.internalRank(x) == 0 && big.internalRank(x.getParent().getRight()) == 2) {
-					big.rotateRight(x.getParent());
-				}
+		}
+		if (changed != null && this.hashed) {
+			rehashPath(changed);
+		}
+		if (changed != null && recount) {
+			recountPath(changed);
+		}
+		return rebalances;
+	}
+
+	/**
+	 * public int successorBalance(IAVLNode node, boolean right)
+	 *
+	 * deletes node and replaces it with it's successor,then rebalances tree returns
+	 * the number of rotations in rebalance. precondition: node has two sons.
+	 * postcondition:tree is balanced
+	 * 
+	 */
+	private int successorBalance(IAVLNode node, boolean right) {
+		int rebalances = 0;
+		IAVLNode successor = successor(node);
+		IAVLNode balancer;
+		boolean rightSon = successor.getParent().getKey() == node.getKey();
+		if (!rightSon) {// if successor is not right son of node,
+			// successor original parent bypasses successor, so balance check is needed for
+			// it
+			balancer = successor.getParent();
+			balancer.setLeft(successor.getRight());// successor has no left son
+			successor.getRight().setParent(balancer);
+			successor.setRight(node.getRight());
+			successor.getRight().setParent(successor);
+		}
+		else {
+			if(successor.getParent().getKey()!=getRoot().getKey()) {
+				balancer = successor.getParent().getParent();
+			}else {
+				balancer = successor;
+			}
+		}
+		successor.setLeft(node.getLeft());
+		successor.setParent(node.getParent());
+		successor.getLeft().setParent(successor);
+		successor.setHeight(1 + Math.max(successor.getLeft().getHeight(), successor.getRight().getHeight()));
+		successor.setSize(1+ successor.getLeft().getSize() + successor.getRight().getSize());// size is changed in treeDemotion
+		if (node.getKey()!=this.getRoot().getKey()) {// checking if node has parent or root change needed
+			if (right) {
+				node.getParent().setRight(successor);
+			} else {
+				node.getParent().setLeft(successor);
+			}
+		} else {
+			this.setRoot(successor);
+		}
+		if (rightSon && (balancer.getKey() == successor.getKey() || !isBalanced(successor))) {
+			// successor was node's right son, so its size above is exact, but the
+			// resize below starts at successor and would count the deletion twice
+			successor.setSize(successor.getSize() + 1);
+		}
+		// if balance of the original parent of the successor is changed,
+		// rebalanceDelete the AVLTree starting from the original parent
+		// else, treeDemote from original parent and return 0
+		if(isBalanced(successor)){
+			if (isBalanced(balancer)) {
+				balancer.setHeight(1 + Math.max(balancer.getLeft().getHeight(), balancer.getRight().getHeight()));
+				treeResize(balancer);
+				return rebalances;
+			} else {
+				return rebalances + rebalanceDelete(balancer);
 			}
+		}else {
+			return rebalances + rebalanceDelete(successor);
+		}
+	}
 
-		} else { // bigger tree has smaller keys
-			// insert x as root of small tree with small keys and calculate operations
-			if (small.empty()) {
-				operations = big.getRoot().getHeight();
+	/**
+	 * public private void treeResize(IAVLNode node)
+	 *
+	 * Updates sizes of tree nodes after deletion
+	 * 
+	 */
+	private void treeResize(IAVLNode node) {
+		while (node.getKey() != this.getRoot().getKey()) {
+			node.setSize(node.getSize() - 1);
+			node = node.getParent();
+		}
+		node.setSize(node.getSize() - 1);
+	}
+
+	/**
+	 * private int rebalanceDelete(IAVLNode node)
+	 *
+	 *
+	 * Returns the number of rotations made to balance tree after a node deletion
+	 * precondition: AVLTree beneath node is not balanced, node is a real node
+	 * postcondition: AVLTree is balanced
+	 * 
+	 */
+	private int rebalanceDelete(IAVLNode node) {
+		int rebalances = 0;
+		boolean isRoot = node.getKey() == this.getRoot().getKey();
+		if (internalRank(node.getRight()) == 2) {
+			// demoting node, 2-2 case
+			node.setHeight(node.getHeight() - 1);
+			node.setSize(node.getSize() - 1);
+			// A balanced parent or root with 1-1
+			if (isRoot || (isBalanced(node.getParent()))) { // if root or father is balanced
+				if (!isRoot) {
+					treeResize(node.getParent());
+				}
+				return 1;
+				// An unbalanced parent case - rebalance
 			} else {
-				operations = big.getRoot().getHeight() - small.getRoot().getHeight();
-				small.getRoot().setParent(x);
-				x.setRight(small.getRoot());
-				x.setHeight(small.getRoot().getHeight() + 1);
+				rebalances += 1 + rebalanceDelete(node.getParent());
 			}
-			small.setRoot(x);
-			// if big tree is a leaf, make x root
-			if (big.getRoot().getHeight() == 0) {
-				big.setRoot(x);
+		} else {
+			// A 3-1 case - rebalance using rotations
+			if (internalRank(node.getRight()) == 3) {
+				// balance problem is between node and node's right son
+				if (node.getLeft().getLeft().getHeight() == node.getLeft().getRight().getHeight()) {
+					// 2nd option - check if brother is 1-1 node
+					rebalances += rotateRight(node);
+				} else {
+					// 3rd option - check if son's left son has internalRank 1
+					if (internalRank(node.getLeft().getLeft()) == 1) {
+						rebalances += rotateRight(node);
+					} else {
+						// 4th option - if son's left son has internalRank 2, double rotation
+						rebalances += rotateLeft(node.getLeft());
+						rebalances += rotateRight(node);
+					}
+				}
 			} else {
-				while (pointer.getHeight() >= small.getRoot().getHeight()) {
-					pointer = pointer.getRight();
+				
+				// SAME CHECK FOR LEFT SON - balance problem is between node and node's left son
+				// 2nd option - check if brother is 1-1 node
+				
+				if (node.getRight().getLeft().getHeight() == node.getRight().getRight().getHeight()) {
+					rebalances += rotateLeft(node);
+
+				} else {
+					if (internalRank(node.getRight().getRight()) == 1) {
+						// 3rd option - check if son's left son has internalRank 1
+						rebalances += rotateLeft(node);
+					} else {
+						// 4th option - if son's left son has internalRank 2, double rotation
+						rebalances += rotateRight(node.getRight());
+						rebalances += rotateLeft(node);
+					}
+				
 				}
 			}
-			// joining x with big
-			x.setLeft(pointer);
-			x.setParent(pointer.getParent());
-			x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
-			pointer.setParent(x);
-			if (x.getParent() != null) {
-				x.getParent().setRight(x);
-				// A 0-2 case, rotate to rebalance
-				if (big.internalRank(x) == 0 && big.internalRank(x.getParent().getLeft()) == 2) {
-					big.rotateLeft(x.getParent());
+			{// if node's original parent subtree is balanced- all tree is balanced
+				// use treeResize to update nodes height and size,
+				// else - rebalance the original parent subtree
+			}
+			if (isRoot || isBalanced(node.getParent().getParent())) {
+				if (!isRoot) {// else,size changed in rotation up to root
+					treeResize(node.getParent().getParent());
+				}
+			} else {
+				rebalances += rebalanceDelete(node.getParent().getParent());
+			}
+		}
+		return rebalances;
+	}
+
+	/**
+	 * private IAVLNode minNode()
+	 *
+	 * Returns the item with the smallest key in the tree, or null if the tree is
+	 * empty
+	 */
+	private IAVLNode minNode(IAVLNode node) {
+		if (!node.isRealNode()) {
+			return null;
+		}
+		IAVLNode minNode = node;
+		while (minNode.getLeft().getKey() != -1) {
+			minNode = minNode.getLeft();
+		}
+		return minNode;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree, or null if
+	 * the tree is empty
+	 */
+	public String min() {
+		if (this.empty()) {
+			return null;
+		}
+		return firstNode().getValue();
+	}
+
+	/**
+	 * private IAVLNode maxNode()
+	 *
+	 * Returns the item with the largest key in the tree, or null if the tree is
+	 * empty
+	 */
+	public IAVLNode maxNode(IAVLNode node) {
+		if (!node.isRealNode()) {
+			return null;
+		}
+		IAVLNode maxNode = node;
+		while (maxNode.getRight().getKey() != -1) {
+			maxNode = maxNode.getRight();
+		}
+		return maxNode;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree, or null if the
+	 * tree is empty
+	 */
+	public String max() {
+		if (this.empty()) {
+			return null;
+		}
+		return lastNode().getValue();
+	}
+
+	/**
+	 * public int minKey()
+	 *
+	 * Returns the smallest key in the tree, or -1 if the tree is empty.
+	 * complexity: O(1)
+	 */
+	public int minKey() {
+		if (this.empty()) {
+			return -1;
+		}
+		return firstNode().getKey();
+	}
+
+	/**
+	 * public int maxKey()
+	 *
+	 * Returns the largest key in the tree, or -1 if the tree is empty. complexity:
+	 * O(1)
+	 */
+	public int maxKey() {
+		if (this.empty()) {
+			return -1;
+		}
+		return lastNode().getKey();
+	}
+
+	/**
+	 * public String pollFirst()
+	 *
+	 * Deletes the item with the smallest key and returns its info, or returns null
+	 * if the tree is empty. The cached minimum is deleted directly, without a
+	 * search. complexity: O(log n), the minimum has at most one son so rebalancing
+	 * is rarely more than a single rotation
+	 */
+	public String pollFirst() {
+		if (this.empty()) {
+			return null;
+		}
+		IAVLNode node = firstNode();
+		String value = node.getValue();
+		deleteNode(node);
+		return value;
+	}
+
+	/**
+	 * public String pollLast()
+	 *
+	 * Deletes the item with the largest key and returns its info, or returns null
+	 * if the tree is empty. complexity: O(log n)
+	 */
+	public String pollLast() {
+		if (this.empty()) {
+			return null;
+		}
+		IAVLNode node = lastNode();
+		String value = node.getValue();
+		deleteNode(node);
+		return value;
+	}
+
+	/**
+	 * private IAVLNode firstNode()
+	 *
+	 * Returns the node with the smallest key, from the cache when it is known.
+	 * precondition: tree is not empty. complexity: O(1) when cached
+	 */
+	private IAVLNode firstNode() {
+		if (this.minCache == null) {
+			this.minCache = minNode(getRoot());
+			if (isDeleted(this.minCache)) {
+				this.minCache = nextLive(this.minCache, true);
+			}
+		}
+		return this.minCache;
+	}
+
+	/**
+	 * private IAVLNode lastNode()
+	 *
+	 * Returns the node with the largest key, from the cache when it is known.
+	 * precondition: tree is not empty. complexity: O(1) when cached
+	 */
+	private IAVLNode lastNode() {
+		if (this.maxCache == null) {
+			this.maxCache = maxNode(getRoot());
+			if (isDeleted(this.maxCache)) {
+				this.maxCache = nextLive(this.maxCache, false);
+			}
+		}
+		return this.maxCache;
+	}
+
+	/**
+	 * private void resetExtremes()
+	 *
+	 * Finds the smallest and largest nodes again after the tree was rebuilt by
+	 * split or join. complexity: O(log n)
+	 */
+	private void resetExtremes() {
+		this.minCache = null;
+		this.maxCache = null;
+		if (!this.empty()) {
+			firstNode();
+			lastNode();
+		}
+	}
+
+	/**
+	 * public IAVLNode successor(IAVLNode node)
+	 *
+	 * Returns the item with the next key in the tree, or null if this node is the
+	 * maximum node
+	 */
+	private IAVLNode successor(IAVLNode node) {
+		if (node.getRight().isRealNode()) {
+			return minNode(node.getRight());
+		} else {
+			IAVLNode thisNode = node;
+			while (thisNode.getKey() != getRoot().getKey()) {
+				if (thisNode.getParent().getLeft().getKey() == thisNode.getKey()) {
+					return thisNode.getParent();
+				}
+				thisNode = thisNode.getParent();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * private IAVLNode predecessor(IAVLNode node)
+	 *
+	 * Returns the item with the previous key in the tree, or null if this node is
+	 * the minimum node
+	 */
+	private IAVLNode predecessor(IAVLNode node) {
+		if (node.getLeft().isRealNode()) {
+			return maxNode(node.getLeft());
+		}
+		while (node.getParent() != null) {
+			if (node.getParent().getRight() == node) {
+				return node.getParent();
+			}
+			node = node.getParent();
+		}
+		return null;
+	}
+
+	/**
+	 * public private void rotateRight (IAVLNode node)
+	 *
+	 * Rotates the tree right, like the algorithm learned in class
+	 */
+	private int rotateRight(IAVLNode node) {
+		int rebalances = 1;
+		IAVLNode axis = node.getLeft();
+		node.setLeft(axis.getRight());
+		axis.setParent(node.getParent());
+		axis.setRight(node);
+		if (node.getKey() == this.getRoot().getKey()) {// root rotation
+			this.setRoot(axis);
+		} else {
+
+			if (node.getParent().getLeft().getKey() == node.getKey()) {// non root rotation
+				node.getParent().setLeft(axis);
+			} else {
+				node.getParent().setRight(axis);
+			}
+		}
+		node.setParent(axis);
+		node.getLeft().setParent(node);
+		int nodeHightBefore = node.getHeight();
+		node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1);
+		if (nodeHightBefore != node.getHeight()) { // if node was demoted/promoted
+			rebalances += Math.abs(nodeHightBefore - node.getHeight());
+		}
+		node.setSize(1 + node.getLeft().getSize() + node.getRight().getSize());
+		int axisHightBefore = axis.getHeight();
+		axis.setHeight(Math.max(axis.getLeft().getHeight(), axis.getRight().getHeight()) + 1);
+		if (axisHightBefore != axis.getHeight()) { // if axis was demoted/promoted
+			rebalances += Math.abs(axisHightBefore - axis.getHeight());
+		}
+		axis.setSize(1 + axis.getLeft().getSize() + axis.getRight().getSize());
+		updateHash(node);
+		updateHash(axis);
+		updateTombstones(node);
+		updateTombstones(axis);
+		return rebalances;
+	}
+
+	/**
+	 * public private void rotateLeft (IAVLNode node)
+	 *
+	 * Rotates the tree left, like the algorithm learned in class
+	 */
+	private int rotateLeft(IAVLNode node) {
+		int rebalances = 1;
+		IAVLNode axis = node.getRight();
+		node.setRight(axis.getLeft());
+		axis.setParent(node.getParent());
+		axis.setLeft(node);
+		if (node.getKey() == this.getRoot().getKey()) {// root rotation
+			this.setRoot(axis);
+		} else {
+
+			if (node.getParent().getLeft().getKey() == node.getKey()) {// non root rotation
+				node.getParent().setLeft(axis);
+			} else {
+				node.getParent().setRight(axis);
+			}
+		}
+		node.setParent(axis);
+		node.getRight().setParent(node);
+		int nodeHightBefore = node.getHeight();
+		node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1);
+		if (nodeHightBefore != node.getHeight()) { // if node was demoted/promoted
+			rebalances += Math.abs(nodeHightBefore - node.getHeight());
+		}
+		node.setSize(1 + node.getLeft().getSize() + node.getRight().getSize());
+		int axisHightBefore = node.getHeight();
+		axis.setHeight(Math.max(axis.getLeft().getHeight(), axis.getRight().getHeight()) + 1);
+		if (axisHightBefore != axis.getHeight()) { // if axis was demoted/promoted
+			rebalances += Math.abs(axisHightBefore - axis.getHeight());
+		}
+		axis.setSize(1 + axis.getLeft().getSize() + axis.getRight().getSize());
+		updateHash(node);
+		updateHash(axis);
+		updateTombstones(node);
+		updateTombstones(axis);
+		return rebalances;
+	}
+
+	/**
+	 * public long rootHash()
+	 *
+	 * returns the hash of all items of a hashed tree, 0 if it is empty.
+	 * complexity: O(1)
+	 */
+	public long rootHash() {
+		checkHashed();
+		return hashOf(getRoot());
+	}
+
+	/**
+	 * public long rangeHash(int lo, int hi)
+	 *
+	 * returns the hash of the items of a hashed tree with keys in [lo, hi], the
+	 * same in any tree holding the same items in that range. complexity: O(log n)
+	 */
+	public long rangeHash(int lo, int hi) {
+		checkHashed();
+		return hashLess((long) hi + 1) - hashLess(lo);
+	}
+
+	/**
+	 * public int rangeCount(int lo, int hi)
+	 *
+	 * returns the number of items with keys in [lo, hi]. complexity: O(log n)
+	 */
+	public int rangeCount(int lo, int hi) {
+		if (this.empty() || lo > hi) {
+			return 0;
+		}
+		return countLess(getRoot(), (long) hi + 1) - countLess(getRoot(), lo);
+	}
+
+	/**
+	 * public int[] diff(AVLTree other)
+	 *
+	 * returns, in ascending order, the keys whose items differ between this
+	 * hashed tree and other: keys held by only one of them or with different
+	 * infos. Key ranges with equal rangeHash are skipped, others are divided at
+	 * the median key of the side with more items, and ranges of at most
+	 * DIFF_LEAF_SIZE items are compared item by item. other is only queried
+	 * through rangeHash, rangeCount, select, rank and exportRange, so it may stand
+	 * in for a remote replica. Unequal ranges are missed only on a 64-bit hash
+	 * collision. complexity: O(d log^2 n) for d differences
+	 */
+	public int[] diff(AVLTree other) {
+		checkHashed();
+		other.checkHashed();
+		int[][] out = { new int[16] };
+		int count = diffRange(other, Integer.MIN_VALUE, Integer.MAX_VALUE, out, 0);
+		return Arrays.copyOf(out[0], count);
+	}
+
+	private int diffRange(AVLTree other, int lo, int hi, int[][] out, int count) {
+		if (lo > hi || rangeHash(lo, hi) == other.rangeHash(lo, hi)) {
+			return count;
+		}
+		int mine = rangeCount(lo, hi);
+		int theirs = other.rangeCount(lo, hi);
+		if (mine + theirs <= DIFF_LEAF_SIZE) {
+			return diffItems(other, lo, hi, mine, theirs, out, count);
+		}
+		// the median of the larger side, ranges [lo, mid - 1] and [mid, hi] both
+		// hold fewer of its items
+		AVLTree larger = mine >= theirs ? this : other;
+		int mid = larger.select(larger.rank(lo) + Math.max(mine, theirs) / 2);
+		count = diffRange(other, lo, mid - 1, out, count);
+		return diffRange(other, mid, hi, out, count);
+	}
+
+	private int diffItems(AVLTree other, int lo, int hi, int mine, int theirs, int[][] out, int count) {
+		int[] keys = new int[mine];
+		String[] values = new String[mine];
+		int[] otherKeys = new int[theirs];
+		String[] otherValues = new String[theirs];
+		this.exportRange(lo, hi, keys, values, 0);
+		other.exportRange(lo, hi, otherKeys, otherValues, 0);
+		int i = 0;
+		int j = 0;
+		while (i < mine || j < theirs) {
+			int key;
+			if (j == theirs || (i < mine && keys[i] < otherKeys[j])) {
+				key = keys[i++];
+			} else if (i == mine || otherKeys[j] < keys[i]) {
+				key = otherKeys[j++];
+			} else {
+				key = keys[i];
+				boolean equal = values[i] == null ? otherValues[j] == null : values[i].equals(otherValues[j]);
+				i++;
+				j++;
+				if (equal) {
+					continue;
+				}
+			}
+			if (count == out[0].length) {
+				out[0] = Arrays.copyOf(out[0], count * 2);
+			}
+			out[0][count++] = key;
+		}
+		return count;
+	}
+
+	/**
+	 * private long hashLess(long x)
+	 *
+	 * Returns the sum of the hashes of the items with keys smaller than x, using
+	 * subtree hashes the way countLess uses subtree sizes. complexity: O(log n)
+	 */
+	private long hashLess(long x) {
+		long sum = 0;
+		IAVLNode node = getRoot();
+		while (node != null && node.isRealNode()) {
+			if (node.getKey() < x) {
+				sum += hashOf(node.getLeft()) + ((HashedNode) node).itemHash;
+				node = node.getRight();
+			} else {
+				node = node.getLeft();
+			}
+		}
+		return sum;
+	}
+
+	private void checkHashed() {
+		if (!this.hashed) {
+			throw new IllegalStateException("tree was not created with hashed = true");
+		}
+	}
+
+	/**
+	 * private void rehashPath(IAVLNode node)
+	 *
+	 * recomputes the subtree hashes from node up to the root
+	 */
+	private void rehashPath(IAVLNode node) {
+		while (node != null) {
+			updateHash(node);
+			node = node.getParent();
+		}
+	}
+
+	// recomputes the subtree hash of node from its sons, a no-op in trees
+	// that are not hashed
+	private static void updateHash(IAVLNode node) {
+		if (node instanceof HashedNode) {
+			HashedNode hashedNode = (HashedNode) node;
+			hashedNode.hash = hashedNode.itemHash + hashOf(node.getLeft()) + hashOf(node.getRight());
+		}
+	}
+
+	private static long hashOf(IAVLNode node) {
+		return node instanceof HashedNode ? ((HashedNode) node).hash : 0;
+	}
+
+	/**
+	 * private static long itemHash(int key, String value)
+	 *
+	 * 64-bit FNV-1a of the info's chars combined with the key and finished with
+	 * the SplitMix64 mixer, so that sums of item hashes rarely collide
+	 */
+	private static long itemHash(int key, String value) {
+		long hash = 0xCBF29CE484222325L;
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+			}
+		}
+		long z = hash + key * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty array
+	 * if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		if (this.root == null) {
+			int[] emptyArr = {};
+			return emptyArr;
+		}
+		int[] arr = new int[size()];
+		exportTo(arr, null, 0);
+		return arr;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray() {
+		if (this.root == null) {
+			String[] emptyArr = {};
+			return emptyArr;
+		}
+		String[] arr = new String[size()];
+		exportTo(null, arr, 0);
+		return arr;
+	}
+
+	/**
+	 * public int exportTo(int[] keys, String[] values, int offset)
+	 *
+	 * Writes all keys and info of the tree, sorted by key, into the given arrays
+	 * starting at offset, in a single traversal. Either array may be null to skip
+	 * it. Returns the number of items written. Large subtrees are exported in
+	 * parallel, each subtree's size gives its exact position in the arrays.
+	 * complexity: O(n)
+	 */
+	public int exportTo(int[] keys, String[] values, int offset) {
+		return exportRange(Integer.MIN_VALUE, Integer.MAX_VALUE, keys, values, offset);
+	}
+
+	/**
+	 * public int exportRange(int lo, int hi, int[] keys, String[] values, int
+	 * offset)
+	 *
+	 * Same as exportTo, for the items with keys in [lo, hi] only. complexity:
+	 * O(log^2 n + k) for k exported items
+	 */
+	public int exportRange(int lo, int hi, int[] keys, String[] values, int offset) {
+		if (this.empty() || lo > hi) {
+			return 0;
+		}
+		int count;
+		if (lo == Integer.MIN_VALUE && hi == Integer.MAX_VALUE) {
+			count = size(); // everything, no key is compared
+		} else {
+			count = countLess(getRoot(), (long) hi + 1) - countLess(getRoot(), lo);
+		}
+		if (offset < 0 || (keys != null && keys.length - offset < count)
+				|| (values != null && values.length - offset < count)) {
+			throw new IllegalArgumentException("buffers too small for " + count + " items at offset " + offset);
+		}
+		new ExportTask(getRoot(), lo, hi, Integer.MIN_VALUE, Integer.MAX_VALUE, keys, values, offset).invoke();
+		return count;
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * Returns the number of keys in the tree smaller than k. k does not have to
+	 * exist in the tree. complexity: O(log n)
+	 */
+	public int rank(int k) {
+		if (this.empty()) {
+			return 0;
+		}
+		return countLess(getRoot(), k);
+	}
+
+	/**
+	 * public int select(int i)
+	 *
+	 * Returns the i-th smallest key in the tree, counting from 0, so that
+	 * rank(select(i)) == i. precondition: 0 <= i < size() complexity: O(log n)
+	 */
+	public int select(int i) {
+		if (i < 0 || i >= size()) {
+			throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + size());
+		}
+		IAVLNode node = getRoot();
+		// tombstones take no index
+		while (liveSize(node.getLeft()) != i || isDeleted(node)) {
+			if (i < liveSize(node.getLeft())) {
+				node = node.getLeft();
+			} else {
+				i -= liveSize(node.getLeft()) + (isDeleted(node) ? 0 : 1);
+				node = node.getRight();
+			}
+		}
+		return node.getKey();
+	}
+
+	/**
+	 * public VerifyReport verify()
+	 *
+	 * Checks the whole tree and returns the violations found: keys out of order,
+	 * wrong parent pointers, heights, sizes and tombstone counts that do not
+	 * match the children, height differences above one, wrong subtree hashes in
+	 * a hashed tree, and cached extremes that do not match the nodes. Subtrees
+	 * of at least VERIFY_FORK_SIZE nodes are checked in parallel on the common
+	 * ForkJoinPool. The tree must not change meanwhile, so CombiningAVLStore.verify
+	 * runs it on the combiner and delays every write until it returns. The cached
+	 * extremes are only compared when the walk was not stopped by a cycle.
+	 * complexity: O(n)
+	 */
+	public VerifyReport verify() {
+		VerifyReport report = new VerifyReport();
+		IAVLNode root = this.root;
+		if (root == null || !root.isRealNode()) {
+			if (root != null && (root.getSize() != 0 || root.getHeight() != -1)) {
+				report.add("virtual root has size " + root.getSize() + " and height " + root.getHeight());
+			}
+			return report;
+		}
+		if (root.getParent() != null) {
+			report.add("root " + root.getKey() + " has parent " + root.getParent().getKey());
+		}
+		int[] counts = new VerifyTask(root, Long.MIN_VALUE, Long.MAX_VALUE, 0, report, new AtomicLong(root.getSize()))
+				.invoke();
+		report.nodes = counts[0];
+		if (counts[1] != tombstoneCount()) {
+			report.add("root counts " + tombstoneCount() + " tombstones, nodes hold " + counts[1]);
+		}
+		if (report.stopped) {
+			// finding the extremes could follow the cycle forever
+			return report;
+		}
+		if (this.minCache != null && this.minCache != firstLive(root, true)) {
+			report.add("cached minimum " + this.minCache.getKey() + " is not the smallest live key");
+		}
+		if (this.maxCache != null && this.maxCache != firstLive(root, false)) {
+			report.add("cached maximum " + this.maxCache.getKey() + " is not the largest live key");
+		}
+		return report;
+	}
+
+	// the smallest, or largest if not smallest, live node of a verified subtree
+	private IAVLNode firstLive(IAVLNode node, boolean smallest) {
+		IAVLNode extreme = smallest ? minNode(node) : maxNode(node);
+		return isDeleted(extreme) ? nextLive(extreme, smallest) : extreme;
+	}
+
+	/**
+	 * private int countLess(IAVLNode node, long x)
+	 *
+	 * Returns the number of keys smaller than x in the subtree of node, using
+	 * subtree sizes less tombstones. complexity: O(log n)
+	 */
+	private int countLess(IAVLNode node, long x) {
+		int count = 0;
+		while (node != null && node.isRealNode()) {
+			if (node.getKey() < x) {
+				count += liveSize(node.getLeft()) + (isDeleted(node) ? 0 : 1);
+				node = node.getRight();
+			} else {
+				node = node.getLeft();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * private class ExportTask
+	 *
+	 * Exports the items of a subtree with keys in [lo, hi] into the arrays at
+	 * offset. min and max bound the keys the subtree may hold, once they are
+	 * inside [lo, hi] the whole subtree is exported by sizes alone. Subtrees of at
+	 * least EXPORT_FORK_SIZE nodes are forked.
+	 */
+	private class ExportTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final IAVLNode node;
+		private final int lo;
+		private final int hi;
+		private final long min;
+		private final long max;
+		private final int[] keys;
+		private final String[] values;
+		private final int offset;
+
+		ExportTask(IAVLNode node, int lo, int hi, long min, long max, int[] keys, String[] values, int offset) {
+			this.node = node;
+			this.lo = lo;
+			this.hi = hi;
+			this.min = min;
+			this.max = max;
+			this.keys = keys;
+			this.values = values;
+			this.offset = offset;
+		}
+
+		@Override
+		protected void compute() {
+			IAVLNode thisNode = this.node;
+			long min = this.min;
+			long max = this.max;
+			// go down to the highest node inside [lo, hi]
+			while (thisNode.isRealNode() && (thisNode.getKey() < lo || thisNode.getKey() > hi)) {
+				if (thisNode.getKey() < lo) {
+					min = (long) thisNode.getKey() + 1;
+					thisNode = thisNode.getRight();
+				} else {
+					max = (long) thisNode.getKey() - 1;
+					thisNode = thisNode.getLeft();
+				}
+			}
+			if (!thisNode.isRealNode()) {
+				return;
+			}
+			if (lo <= min && max <= hi) {
+				exportSubtree(thisNode, offset);
+				return;
+			}
+			int at = offset + countLess(thisNode.getLeft(), (long) hi + 1) - countLess(thisNode.getLeft(), lo);
+			invokeAll(new ExportTask(thisNode.getLeft(), lo, hi, min, (long) thisNode.getKey() - 1, keys, values, offset),
+					new ExportTask(thisNode.getRight(), lo, hi, (long) thisNode.getKey() + 1, max, keys, values,
+							at + put(thisNode, at)));
+		}
+
+		private void exportSubtree(IAVLNode node, int offset) {
+			if (!node.isRealNode()) {
+				return;
+			}
+			int at = offset + liveSize(node.getLeft());
+			int next = at + put(node, at);
+			if (node.getSize() >= EXPORT_FORK_SIZE) {
+				invokeAll(new ExportTask(node.getLeft(), lo, hi, min, max, keys, values, offset),
+						new ExportTask(node.getRight(), lo, hi, min, max, keys, values, next));
+			} else {
+				exportSubtree(node.getLeft(), offset);
+				exportSubtree(node.getRight(), next);
+			}
+		}
+
+		// writes the item of node at index at, returns 1, or 0 for a tombstone
+		private int put(IAVLNode node, int at) {
+			if (isDeleted(node)) {
+				return 0;
+			}
+			if (keys != null) {
+				keys[at] = node.getKey();
+			}
+			if (values != null) {
+				values[at] = node.getValue();
+			}
+			return 1;
+		}
+	}
+
+	/**
+	 * private class VerifyTask
+	 *
+	 * Checks a subtree whose keys must lie in [min, max] and returns its number of
+	 * real nodes and of tombstones. Every node is checked against its own
+	 * children only, so a violation is reported at the node where it is. The
+	 * subtree is walked with an explicit stack and forks only in the top
+	 * MAX_VERIFY_FORK_DEPTH levels, so a deep corrupted chain is reported by its
+	 * heights instead of ending in a StackOverflowError. All tasks draw on one
+	 * budget of as many nodes as the root's size. Only a cycle, shared subtrees
+	 * or wrong sizes can exhaust it, which ends the check with a violation.
+	 */
+	private class VerifyTask extends RecursiveTask<int[]> {
+
+		private static final long serialVersionUID = 1L;
+		// nodes walked between two charges of the shared budget
+		private static final int CHARGE_BATCH = 1 << 10;
+		private final IAVLNode node;
+		private final long min;
+		private final long max;
+		private final int depth;
+		private final VerifyReport report;
+		private final AtomicLong budget;
+
+		VerifyTask(IAVLNode node, long min, long max, int depth, VerifyReport report, AtomicLong budget) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+			this.depth = depth;
+			this.report = report;
+			this.budget = budget;
+		}
+
+		@Override
+		protected int[] compute() {
+			int[] counts = new int[2];
+			// the subtrees still to walk, tasks that are not forked serve as frames
+			ArrayDeque<VerifyTask> stack = new ArrayDeque<>();
+			stack.push(this);
+			int walked = 0;
+			while (!stack.isEmpty()) {
+				VerifyTask next = stack.pop();
+				IAVLNode node = next.node;
+				if (!node.isRealNode()) {
+					verifyVirtual(node);
+					continue;
+				}
+				if (++walked == CHARGE_BATCH) {
+					if (!charge(walked)) {
+						return counts;
+					}
+					walked = 0;
+				}
+				int k = node.getKey();
+				verifyNode(node, next.min, next.max);
+				counts[0]++;
+				if (node instanceof AVLNode && ((AVLNode) node).isDeleted()) {
+					counts[1]++;
+				}
+				int depth = next.depth + 1;
+				if (node.getSize() >= VERIFY_FORK_SIZE && depth <= MAX_VERIFY_FORK_DEPTH) {
+					VerifyTask left = new VerifyTask(node.getLeft(), next.min, (long) k - 1, depth, report, budget);
+					VerifyTask right = new VerifyTask(node.getRight(), (long) k + 1, next.max, depth, report, budget);
+					invokeAll(left, right);
+					for (int[] sub : new int[][] { left.join(), right.join() }) {
+						counts[0] += sub[0];
+						counts[1] += sub[1];
+					}
+					continue;
+				}
+				// virtual sons are checked in place rather than pushed
+				if (node.getRight().isRealNode()) {
+					stack.push(new VerifyTask(node.getRight(), (long) k + 1, next.max, depth, report, budget));
+				} else {
+					verifyVirtual(node.getRight());
+				}
+				if (node.getLeft().isRealNode()) {
+					stack.push(new VerifyTask(node.getLeft(), next.min, (long) k - 1, depth, report, budget));
+				} else {
+					verifyVirtual(node.getLeft());
+				}
+			}
+			charge(walked);
+			return counts;
+		}
+
+		private void verifyVirtual(IAVLNode node) {
+			if (node.getSize() != 0 || node.getHeight() != -1) {
+				report.add("virtual node has size " + node.getSize() + " and height " + node.getHeight());
+			}
+		}
+
+		// takes walked nodes from the budget, returns false once it is exhausted
+		private boolean charge(int walked) {
+			long left = budget.addAndGet(-walked);
+			if (left < 0 && left + walked >= 0) {
+				report.stop("more nodes are reachable than the root's size of " + root.getSize()
+						+ ", the tree has a cycle, shared subtrees or wrong sizes");
+			}
+			return left >= 0;
+		}
+
+		private void verifyNode(IAVLNode node, long min, long max) {
+			int k = node.getKey();
+			IAVLNode left = node.getLeft();
+			IAVLNode right = node.getRight();
+			if (k < min || k > max) {
+				report.add("node " + k + " is out of order, its key must be in [" + min + ", " + max + "]");
+			}
+			if (left.isRealNode() && left.getParent() != node) {
+				report.add("left son " + left.getKey() + " of node " + k + " has another parent");
+			}
+			if (right.isRealNode() && right.getParent() != node) {
+				report.add("right son " + right.getKey() + " of node " + k + " has another parent");
+			}
+			int height = 1 + Math.max(left.getHeight(), right.getHeight());
+			if (node.getHeight() != height) {
+				report.add("node " + k + " has height " + node.getHeight() + ", expected " + height);
+			}
+			if (Math.abs(left.getHeight() - right.getHeight()) > 1) {
+				report.add("node " + k + " is unbalanced, its sons have heights " + left.getHeight() + " and "
+						+ right.getHeight());
+			}
+			int size = 1 + left.getSize() + right.getSize();
+			if (node.getSize() != size) {
+				report.add("node " + k + " has size " + node.getSize() + ", expected " + size);
+			}
+			int tombstones = tombstonesOf(left) + tombstonesOf(right) + (isDeleted(node) ? 1 : 0);
+			if (tombstonesOf(node) != tombstones) {
+				report.add("node " + k + " counts " + tombstonesOf(node) + " tombstones, expected " + tombstones);
+			}
+			if (node instanceof HashedNode) {
+				HashedNode hashedNode = (HashedNode) node;
+				long itemHash = hashedNode.isDeleted() ? 0 : itemHash(k, node.getValue());
+				if (hashedNode.itemHash != itemHash) {
+					report.add("node " + k + " has a stale item hash");
+				} else if (hashedNode.hash != itemHash + hashOf(left) + hashOf(right)) {
+					report.add("node " + k + " has a wrong subtree hash");
+				}
+			}
+		}
+	}
+
+	/**
+	 * private class ReplaceTask
+	 *
+	 * Replaces the infos of the items of a subtree with keys in [lo, hi] and
+	 * returns their number. Only the subtrees that overlap [lo, hi] are visited.
+	 * The item hash of a node is updated by setValue, its subtree hash once both
+	 * of its sons are done.
+	 */
+	private class ReplaceTask extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+		private final IAVLNode node;
+		private final int lo;
+		private final int hi;
+		private final IntObjFunction<String, String> function;
+
+		ReplaceTask(IAVLNode node, int lo, int hi, IntObjFunction<String, String> function) {
+			this.node = node;
+			this.lo = lo;
+			this.hi = hi;
+			this.function = function;
+		}
+
+		@Override
+		protected Integer compute() {
+			return replaceSubtree(node);
+		}
+
+		private int replaceSubtree(IAVLNode node) {
+			if (!node.isRealNode()) {
+				return 0;
+			}
+			int k = node.getKey();
+			int count = 0;
+			if (k >= lo && k <= hi && !isDeleted(node)) {
+				((AVLNode) node).setValue(function.apply(k, node.getValue()));
+				count++;
+			}
+			IAVLNode left = k > lo ? node.getLeft() : null;
+			IAVLNode right = k < hi ? node.getRight() : null;
+			if (left != null && right != null && node.getSize() >= REPLACE_FORK_SIZE) {
+				ReplaceTask leftTask = new ReplaceTask(left, lo, hi, function);
+				ReplaceTask rightTask = new ReplaceTask(right, lo, hi, function);
+				invokeAll(leftTask, rightTask);
+				count += leftTask.join() + rightTask.join();
+			} else {
+				count += left != null ? replaceSubtree(left) : 0;
+				count += right != null ? replaceSubtree(right) : 0;
+			}
+			updateHash(node);
+			return count;
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 *
+	 * precondition: none postcondition: none
+	 */
+	public int size() {
+		if (this.root == null) {
+			return 0;
+		}
+		return liveSize(this.root);
+	}
+
+	/**
+	 * public IAVLNode getRoot()
+	 *
+	 * Returns the root AVL node, or null if the tree is empty
+	 *
+	 * precondition: none postcondition: none
+	 */
+	public IAVLNode getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * public void setRoot(IAVLNode)
+	 *
+	 * sets the root of the tree to be node.
+	 *
+	 * precondition: none postcondition: none
+	 */
+	private void setRoot(IAVLNode node) {
+		this.root = node;
+	}
+
+	/**
+	 * private boolean isLeaf(IAVLNode node)
+	 *
+	 * Returns True if the IAVLNode is a leaf
+	 *
+	 * precondition: none postcondition: none
+	 */
+
+	private boolean isLeaf(IAVLNode node) {
+		if (node.getLeft().isRealNode() || node.getRight().isRealNode()) {
+			return false;
+		}
+		return true;
+
+	}
+
+	/**
+	 * private int internalRank(IAVLNode node)
+	 *
+	 * Returns the difference in height between node and it's parent If node has no
+	 * parent (is root) returns 0
+	 *
+	 * precondition: none postcondition: none
+	 */
+
+	private int internalRank(IAVLNode node) {
+		if (getRoot().getKey() != node.getKey()) {
+			return node.getParent().getHeight() - node.getHeight();
+		}
+		return 0;
+	}
+
+	/**
+	 * private boolean isBalanced(IAVLNode node)
+	 *
+	 * Returns true if the IAVLNode node is balanced, false else
+	 *
+	 * precondition: none postcondition: none
+	 */
+
+	private boolean isBalanced(IAVLNode node) {
+		if (!node.isRealNode()) {
+			return true;
+		}
+		if (internalRank(node.getLeft()) == 1 && internalRank(node.getRight()) == 1) {
+			return true;
+		}
+		if (internalRank(node.getLeft()) == 2 && internalRank(node.getRight()) == 1) {
+			return true;
+		}
+		if (internalRank(node.getLeft()) == 1 && internalRank(node.getRight()) == 2) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * public string split(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x. Returns an array [t1,
+	 * t2] with two AVL trees. keys(t1) < x < keys(t2). precondition: search(x) !=
+	 * null postcondition: none
+	 */
+	public AVLTree[] split(int x) {
+		cancelRebuild();
+		AVLTree[] splitTrees = new AVLTree[2];
+		IAVLNode splitNode = nodeSearch(x); // precondition is that x exists
+		AVLTree lessTree = emptyTree();
+		lessTree.root = splitNode.getLeft();
+		lessTree.root.setParent(null);
+		AVLTree moreTree = emptyTree();
+		moreTree.root = splitNode.getRight();
+		moreTree.root.setParent(null);
+		IAVLNode thisNode = splitNode.getParent();
+		int cameFrom = splitNode.getKey();
+		while (thisNode != null) {
+			AVLTree addTree = new AVLTree();
+			if (thisNode.getLeft().getKey() == cameFrom) { // if went up right
+				addTree.root = thisNode.getRight();
+				addTree.root.setParent(null);
+				moreTree.joinTrees(this.factory.createNode(thisNode), addTree);
+			}
+			if (thisNode.getRight().getKey() == cameFrom) { // if went up left
+				addTree.root = thisNode.getLeft();
+				addTree.root.setParent(null);
+				lessTree.joinTrees(this.factory.createNode(thisNode), addTree);
+			}
+			cameFrom = thisNode.getKey();
+			thisNode = thisNode.getParent();
+
+		}
+		splitTrees[0] = lessTree;
+		splitTrees[1] = moreTree;
+		lessTree.resetExtremes();
+		moreTree.resetExtremes();
+		if (this.usageTails != null) {
+			// usage order is rebuilt in key order, use counts are kept
+			lessTree.linkUsageRec(lessTree.getRoot());
+			moreTree.linkUsageRec(moreTree.getRoot());
+		}
+		if (this.valueIndex != null) {
+			this.valueIndex.remove(x, splitNode.getValue());
+			handOverIndex(lessTree, moreTree);
+		}
+		if (this.filter != null) {
+			// x is in neither part
+			this.filter.remove(x);
+		}
+		invalidateHandles();
+		publish(ChangeEvent.Type.SPLIT, x, x, splitNode.getValue());
+		for (AVLTree part : splitTrees) {
+			part.changes = this.changes;
+			part.changeSequence = this.changeSequence;
+		}
+		return splitTrees;
+	}
+
+	// -----------------------------------------------------------------------------------------------
+
+	/**
+	 * public string exSplit(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x. Returns an array [t1,
+	 * t2] with two AVL trees. keys(t1) < x < keys(t2). precondition: search(x) !=
+	 * null postcondition: none
+	 */
+	public int[] exSplit(int x) {
+		cancelRebuild();
+		int complexityJoins = 0;
+		int moneJoins = 0;
+		int maxComplexityJoin = 0;
+		IAVLNode splitNode = nodeSearch(x); // precondition is that x exists
+		AVLTree lessTree = new AVLTree();
+		lessTree.root = splitNode.getLeft();
+		lessTree.root.setParent(null);
+		AVLTree moreTree = new AVLTree();
+		moreTree.root = splitNode.getRight();
+		moreTree.root.setParent(null);
+		IAVLNode thisNode = splitNode.getParent();
+		int cameFrom = splitNode.getKey();
+		while (thisNode != null) {
+			AVLTree addTree = new AVLTree();
+			if (thisNode.getLeft().getKey() == cameFrom) { // if went up right
+				addTree.root = thisNode.getRight();
+				addTree.root.setParent(null);
+				int thisJoin;
+				thisJoin = moreTree.joinTrees(this.factory.createNode(thisNode), addTree);
+				complexityJoins += thisJoin;
+				moneJoins++;
+				if (maxComplexityJoin < thisJoin) {
+					maxComplexityJoin = thisJoin;
+				}
+			}
+			if (thisNode.getRight().getKey() == cameFrom) { // if went up left
+				addTree.root = thisNode.getLeft();
+				addTree.root.setParent(null);
+				int thisJoin = lessTree.joinTrees(this.factory.createNode(thisNode), addTree);
+				complexityJoins += thisJoin;
+				moneJoins++;
+				if (maxComplexityJoin < thisJoin) {
+					maxComplexityJoin = thisJoin;
+				}
+			}
+			cameFrom = thisNode.getKey();
+			thisNode = thisNode.getParent();
+
+		}
+		int[] results = { complexityJoins, moneJoins, maxComplexityJoin };
+		return results;
+	}
+
+	// -----------------------------------------------------------------------------------------------
+
+	/**
+	 * public join(IAVLNode x, AVLTree t)
+	 *
+	 * joins t and x with the tree. Returns the complexity of the operation (rank
+	 * difference + 1 between the tree and t) precondition: keys(x,t) < keys() or
+	 * keys(x,t) > keys() postcondition: none
+	 */
+	public int join(IAVLNode x, AVLTree t) {
+		cancelRebuild();
+		t.cancelRebuild();
+		if (this.maxTombstoneRatio == 0) {
+			// only trees that delete lazily hold tombstones
+			t.compact();
+		}
+		if (this.usageTails != null) {
+			checkTracked(x);
+			checkTracked(t.getRoot());
+		}
+		if (this.hashed && !(x instanceof HashedNode)) {
+			x = this.factory.createNode(x);
+		}
+		publish(ChangeEvent.Type.JOIN, x.getKey(), x.getKey(), x.getValue());
+		if (t.changes != this.changes) {
+			// the items of t move from its stream to this one
+			if (this.changes != null) {
+				publishInsertsRec(t.getRoot());
+			}
+			if (!t.empty()) {
+				t.publish(ChangeEvent.Type.DELETE_RANGE, t.minKey(), t.maxKey(), null);
+			}
+		}
+		if (this.filter != null) {
+			this.filter.add(x.getKey());
+			if (t.filter != this.filter && !this.filter.addAll(t.filter)) {
+				// keys shared through a split are already counted
+				addToFilterRec(t.getRoot());
+			}
+		}
+		if (this.valueIndex != null) {
+			if (t.valueIndex != null && t.valueIndex.size > this.valueIndex.size) {
+				indexRec(getRoot(), t.valueIndex, true);
+				this.valueIndex = t.valueIndex;
+			} else {
+				indexRec(t.getRoot(), this.valueIndex, true);
+			}
+			this.valueIndex.add(x.getKey(), x.getValue());
+		}
+		if (t.handles != null) {
+			if (this.handles == null) {
+				this.handles = t.handles;
+				this.handles.tree = this;
+			} else {
+				t.handles.forward = this.handles;
+				t.handles.tree = null;
+			}
+			t.handles = null;
+		}
+		int operations = joinTrees(x, t);
+		resetExtremes();
+		if (this.usageTails != null) {
+			linkUsage((TrackedNode) x);
+			linkUsageRec(t.getRoot());
+		}
+		evictOverflow();
+		return operations;
+	}
+
+	/**
+	 * private int joinTrees(IAVLNode x, AVLTree t)
+	 *
+	 * join without publishing or usage tracking, used by split and its variants
+	 * on their intermediate trees
+	 */
+	private int joinTrees(IAVLNode x, AVLTree t) {
+		boolean tGreater;
+		if (!t.empty()) {
+			tGreater = t.getRoot().getKey() > x.getKey();
+		} else {
+			tGreater = !this.empty() && this.getRoot().getKey() < x.getKey();
+		}
+		return joinTrees(x, t, tGreater);
+	}
+
+	/**
+	 * private int joinTrees(IAVLNode x, AVLTree t, boolean tGreater)
+	 *
+	 * joins t and x with the tree, with the items of t placed after x and the
+	 * items of this tree before x if tGreater, and the other way around otherwise.
+	 * Keys are not compared, so the order may also be positional.
+	 */
+	private int joinTrees(IAVLNode x, AVLTree t, boolean tGreater) {
+		this.minCache = null;
+		this.maxCache = null;
+		if (t.empty()) {
+			if (!this.empty()) {
+				// if received empty tree and this is not empty - recursively call join
+				return join(x, this, t, !tGreater);
+			} else {
+				// if both empty - return tree with root
+				updateTombstones(x);
+				this.setRoot(x);
+				return 1;
+			}
+		}
+		if (this.empty()) {
+			// if // if received tree empty and received is not empty - recursively call
+			// join
+			return join(x, t, this, tGreater);
+		}
+		int operations = 0;
+		AVLTree big;
+		AVLTree small;
+		// if heights of this and t are equal - make x root of joined tree
+		if (this.getRoot().getHeight() == t.getRoot().getHeight()) {
+			if (!tGreater) {
+				x.setLeft(t.getRoot());
+				x.setRight(this.getRoot());
+			} else {
+				x.setLeft(this.getRoot());
+				x.setRight(t.getRoot());
+			}
+			x.getLeft().setParent(x);
+			x.getRight().setParent(x);
+			x.setHeight(this.getRoot().getHeight() + 1);
+			x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
+			updateHash(x);
+			updateTombstones(x);
+			this.setRoot(x);
+			return 1;
+		}
+		// check which tree has bigger height and recursive call join when bigger tree
+		// is big
+		if (this.getRoot().getHeight() > t.getRoot().getHeight()) {
+			big = this;
+			small = t;
+		} else {
+			big = t;
+			small = this;
+		}
+		operations = join(x, big, small, big == t ? tGreater : !tGreater);
+		return operations;
+	}
+
+	private int join(IAVLNode x, AVLTree big, AVLTree small, boolean bigGreater) {
+
+		int operations = 0;
+		IAVLNode pointer = big.getRoot();
+		if (bigGreater) {// bigger tree has bigger keys
+			// insert x as root of small tree with small keys and calculate operations
+			if (small.empty()) {
+				operations = big.getRoot().getHeight();
+			} else {
+				operations = big.getRoot().getHeight() - small.getRoot().getHeight();
+				small.getRoot().setParent(x);
+				x.setLeft(small.getRoot());
+				x.setHeight(small.getRoot().getHeight() + 1);
+			}
+			small.setRoot(x);
+			// if big tree is a leaf, make x root
+			if (big.getRoot().getHeight() == 0) {
+				big.setRoot(x);
+			} else {
+				while (pointer.getHeight() >= small.getRoot().getHeight()) {
+					pointer = pointer.getLeft();
+				}
+			}
+
+			// joining x with big
+			x.setRight(pointer);
+			x.setParent(pointer.getParent());
+			x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
+			pointer.setParent(x);
+			if (x.getParent() != null) {
+				x.getParent().setLeft(x);
+				// A 0-2 case, rotate to rebalance
+				if (big.internalRank(x) == 0 && big.internalRank(x.getParent().getRight()) == 2) {
+					big.rotateRight(x.getParent());
+				}
+			}
+
+		} else { // bigger tree has smaller keys
+			// insert x as root of small tree with small keys and calculate operations
+			if (small.empty()) {
+				operations = big.getRoot().getHeight();
+			} else {
+				operations = big.getRoot().getHeight() - small.getRoot().getHeight();
+				small.getRoot().setParent(x);
+				x.setRight(small.getRoot());
+				x.setHeight(small.getRoot().getHeight() + 1);
+			}
+			small.setRoot(x);
+			// if big tree is a leaf, make x root
+			if (big.getRoot().getHeight() == 0) {
+				big.setRoot(x);
+			} else {
+				while (pointer.getHeight() >= small.getRoot().getHeight()) {
+					pointer = pointer.getRight();
+				}
+			}
+			// joining x with big
+			x.setLeft(pointer);
+			x.setParent(pointer.getParent());
+			x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
+			pointer.setParent(x);
+			if (x.getParent() != null) {
+				x.getParent().setRight(x);
+				// A 0-2 case, rotate to rebalance
+				if (big.internalRank(x) == 0 && big.internalRank(x.getParent().getLeft()) == 2) {
+					big.rotateLeft(x.getParent());
+				}
+			}
+		}
+
+		x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
+		updateHash(x);
+		updateTombstones(x);
+		big.rebalanceInsert(x);// insert rebalance
+		pointer = x.getParent();
+		while (pointer != null) {
+			// size update
+			pointer.setSize(pointer.getLeft().getSize() + pointer.getRight().getSize() + 1);
+			updateHash(pointer);
+			updateTombstones(pointer);
+			pointer = pointer.getParent();
+		}
+		// updating this tree as the joined tree
+		this.setRoot(big.getRoot());
+		return operations + 1;
+	}
+
+	// --------------------------------end new join test--------------------------
+
+	/**
+	 * public Flow.Publisher<ChangeEvent> publishChanges(int bufferCapacity)
+	 *
+	 * Starts publishing the changes made to the tree. Every insert, delete,
+	 * deleteRange, split and join emits ChangeEvents, in the order the operations
+	 * were made. The two trees returned by split keep publishing to the same
+	 * stream, so applying the events in order gives the items of all trees that
+	 * share it. Each subscriber buffers at most bufferCapacity events, a full
+	 * buffer blocks the changing operation until the subscriber catches up.
+	 * Subscribers are notified on the common ForkJoin pool.
+	 */
+	public Flow.Publisher<ChangeEvent> publishChanges(int bufferCapacity) {
+		if (this.changes == null) {
+			this.changes = new SubmissionPublisher<>(ForkJoinPool.commonPool(), bufferCapacity);
+			this.changeSequence = new AtomicLong();
+		}
+		return this.changes;
+	}
+
+	/**
+	 * public void closeChanges()
+	 *
+	 * Stops publishing changes of this tree and completes all subscribers of its
+	 * stream, which other trees split from it may share, once they have received
+	 * the buffered events.
+	 */
+	public void closeChanges() {
+		if (this.changes != null) {
+			this.changes.close();
+			this.changes = null;
+			this.changeSequence = null;
+		}
+	}
+
+	private void publish(ChangeEvent.Type type, int key, int toKey, String value) {
+		if (this.changes != null && !this.changes.isClosed()) {
+			this.changes.submit(new ChangeEvent(this.changeSequence.getAndIncrement(), type, key, toKey, value));
+		}
+	}
+
+	// publishes an INSERT for every item of the subtree of node, in key order
+	private void publishInsertsRec(IAVLNode node) {
+		if (node == null || !node.isRealNode()) {
+			return;
+		}
+		publishInsertsRec(node.getLeft());
+		if (!isDeleted(node)) {
+			publish(ChangeEvent.Type.INSERT, node.getKey(), node.getKey(), node.getValue());
+		}
+		publishInsertsRec(node.getRight());
+	}
+
+	/**
+	 * public static class ChangeEvent
+	 *
+	 * A change made to a tree. key and value are the item inserted, deleted or
+	 * updated to value, the split key or the joined node x. A SPLIT event removes
+	 * the split item, the other items stay on the stream in the two new trees. A
+	 * JOIN event adds x. When the joined tree publishes to another stream, or to
+	 * none, the JOIN is followed by an INSERT for each of its items, and its own
+	 * stream gets a DELETE_RANGE over all of them. DELETE_RANGE covers all keys
+	 * in [key, toKey], for the other types toKey equals key.
+	 */
+	public static class ChangeEvent {
+
+		public enum Type {
+			INSERT, DELETE, DELETE_RANGE, SPLIT, JOIN, UPDATE
+		}
+
+		private final long sequence;
+		private final Type type;
+		private final int key;
+		private final int toKey;
+		private final String value;
+
+		ChangeEvent(long sequence, Type type, int key, int toKey, String value) {
+			this.sequence = sequence;
+			this.type = type;
+			this.key = key;
+			this.toKey = toKey;
+			this.value = value;
+		}
+
+		public long getSequence() {
+			return this.sequence;
+		}
+
+		public Type getType() {
+			return this.type;
+		}
+
+		public int getKey() {
+			return this.key;
+		}
+
+		public int getToKey() {
+			return this.toKey;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+
+		public String toString() {
+			return this.sequence + " " + this.type + " " + this.key
+					+ (this.toKey != this.key ? ".." + this.toKey : "") + " " + this.value;
+		}
+	}
+
+	/**
+	 * public static class VerifyReport
+	 *
+	 * The result of AVLTree.verify. Keeps the first MAX_REPORTED violations, in no
+	 * particular order, and the one that ended the check early if any, and counts
+	 * all of them.
+	 */
+	public static class VerifyReport {
+
+		public static final int MAX_REPORTED = 100;
+
+		private final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger violationCount = new AtomicInteger();
+		private int nodes;
+		private volatile boolean stopped;
+
+		void add(String violation) {
+			if (this.violationCount.getAndIncrement() < MAX_REPORTED) {
+				this.violations.add(violation);
+			}
+		}
+
+		// adds the violation that ends the check, kept beyond MAX_REPORTED
+		void stop(String violation) {
+			this.stopped = true;
+			this.violationCount.incrementAndGet();
+			this.violations.add(violation);
+		}
+
+		public boolean isValid() {
+			return this.violationCount.get() == 0;
+		}
+
+		public int violationCount() {
+			return this.violationCount.get();
+		}
+
+		public List<String> getViolations() {
+			return new ArrayList<>(this.violations);
+		}
+
+		public int nodeCount() {
+			return this.nodes;
+		}
+
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(this.nodes).append(" nodes, ").append(violationCount()).append(" violations");
+			for (String violation : this.violations) {
+				text.append(System.lineSeparator()).append(violation);
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * public enum EvictionPolicy
+	 *
+	 * The item a capacity bounded tree evicts when it grows past its capacity
+	 */
+	public enum EvictionPolicy {
+		SMALLEST_KEY, LARGEST_KEY, LRU, LFU
+	}
+
+	/**
+	 * private void afterInsert(IAVLNode node)
+	 *
+	 * adds a newly inserted node to the membership filter, the value index and
+	 * the usage order and evicts items while the tree is over capacity
+	 */
+	private void afterInsert(IAVLNode node) {
+		if (this.filter != null) {
+			this.filter.add(node.getKey());
+		}
+		if (this.valueIndex != null) {
+			this.valueIndex.add(node.getKey(), node.getValue());
+		}
+		if (this.usageTails != null) {
+			linkUsage((TrackedNode) node);
+		}
+		evictOverflow();
+	}
+
+	/**
+	 * private void evictOverflow()
+	 *
+	 * deletes items chosen by the eviction policy until size() <= capacity.
+	 * complexity: O(log n) per evicted item
+	 */
+	private void evictOverflow() {
+		while (size() > this.capacity) {
+			IAVLNode victim;
+			if (this.eviction == EvictionPolicy.SMALLEST_KEY) {
+				victim = firstNode();
+			} else if (this.eviction == EvictionPolicy.LARGEST_KEY) {
+				victim = lastNode();
+			} else {
+				victim = this.usageHead;
+			}
+			deleteNode(victim);
+		}
+	}
+
+	/**
+	 * private void linkUsage(TrackedNode node)
+	 *
+	 * inserts node into the usage order after the last node with the same or a
+	 * lower use count. complexity: O(log u) for u distinct use counts
+	 */
+	private void linkUsage(TrackedNode node) {
+		if (this.eviction == EvictionPolicy.LRU) {
+			node.uses = 0;
+		}
+		Map.Entry<Integer, TrackedNode> floor = this.usageTails.floorEntry(node.uses);
+		TrackedNode prev = floor == null ? null : floor.getValue();
+		TrackedNode next = prev == null ? this.usageHead : prev.nextUse;
+		node.prevUse = prev;
+		node.nextUse = next;
+		if (prev == null) {
+			this.usageHead = node;
+		} else {
+			prev.nextUse = node;
+		}
+		if (next == null) {
+			this.usageTail = node;
+		} else {
+			next.prevUse = node;
+		}
+		this.usageTails.put(node.uses, node);
+	}
+
+	/**
+	 * private void unlinkUsage(TrackedNode node)
+	 *
+	 * removes node from the usage order. complexity: O(log u)
+	 */
+	private void unlinkUsage(TrackedNode node) {
+		if (this.usageTails.get(node.uses) == node) {
+			if (node.prevUse != null && node.prevUse.uses == node.uses) {
+				this.usageTails.put(node.uses, node.prevUse);
+			} else {
+				this.usageTails.remove(node.uses);
+			}
+		}
+		if (node.prevUse == null) {
+			this.usageHead = node.nextUse;
+		} else {
+			node.prevUse.nextUse = node.nextUse;
+		}
+		if (node.nextUse == null) {
+			this.usageTail = node.prevUse;
+		} else {
+			node.nextUse.prevUse = node.prevUse;
+		}
+		node.prevUse = null;
+		node.nextUse = null;
+	}
+
+	/**
+	 * private void touchUsage(TrackedNode node)
+	 *
+	 * records a use of node: LRU moves it to the end of the usage order, LFU also
+	 * increments its use count. complexity: O(log u)
+	 */
+	private void touchUsage(TrackedNode node) {
+		unlinkUsage(node);
+		if (this.eviction == EvictionPolicy.LFU && node.uses < Integer.MAX_VALUE) {
+			node.uses++;
+		}
+		linkUsage(node);
+	}
+
+	/**
+	 * private void replaceUsage(TrackedNode node, TrackedNode copy)
+	 *
+	 * puts copy at node's place in the usage order, used when split copies the
+	 * nodes on its path
+	 */
+	private void replaceUsage(TrackedNode node, TrackedNode copy) {
+		if (node.prevUse == null && this.usageHead != node) {
+			return; // node is not in the usage order
+		}
+		copy.uses = node.uses;
+		copy.prevUse = node.prevUse;
+		copy.nextUse = node.nextUse;
+		if (copy.prevUse == null) {
+			this.usageHead = copy;
+		} else {
+			copy.prevUse.nextUse = copy;
+		}
+		if (copy.nextUse == null) {
+			this.usageTail = copy;
+		} else {
+			copy.nextUse.prevUse = copy;
+		}
+		if (this.usageTails.get(node.uses) == node) {
+			this.usageTails.put(node.uses, copy);
+		}
+		node.prevUse = null;
+		node.nextUse = null;
+	}
+
+	/**
+	 * private void linkUsageRec(IAVLNode node)
+	 *
+	 * links all nodes of the subtree of node into this tree's usage order, in key
+	 * order. complexity: O(n log u)
+	 */
+	private void linkUsageRec(IAVLNode node) {
+		if (node == null || !node.isRealNode()) {
+			return;
+		}
+		linkUsageRec(node.getLeft());
+		linkUsage((TrackedNode) node);
+		linkUsageRec(node.getRight());
+	}
+
+	/**
+	 * private void moveUsageRec(IAVLNode node, AVLTree to)
+	 *
+	 * moves all nodes of the subtree of node from this tree's usage order to the
+	 * usage order of to. complexity: O(n log u)
+	 */
+	private void moveUsageRec(IAVLNode node, AVLTree to) {
+		if (node == null || !node.isRealNode()) {
+			return;
+		}
+		moveUsageRec(node.getLeft(), to);
+		unlinkUsage((TrackedNode) node);
+		to.linkUsage((TrackedNode) node);
+		moveUsageRec(node.getRight(), to);
+	}
+
+	/**
+	 * private void checkTracked(IAVLNode node)
+	 *
+	 * LRU and LFU trees can only hold nodes created by such a tree, the subtree of
+	 * node is checked before a join. complexity: O(n)
+	 */
+	private void checkTracked(IAVLNode node) {
+		if (node == null || !node.isRealNode()) {
+			return;
+		}
+		if (!(node instanceof TrackedNode)) {
+			throw new IllegalArgumentException("node " + node.getKey() + " was not created by an LRU or LFU tree");
+		}
+		checkTracked(node.getLeft());
+		checkTracked(node.getRight());
+	}
+
+	/**
+	 * public int deleteRange(int lo, int hi)
+	 *
+	 * deletes all items with keys in [lo, hi] from the tree. Returns the number of
+	 * deleted items. Uses two splits and a join instead of one delete per key.
+	 * complexity: as extractRange
+	 */
+	public int deleteRange(int lo, int hi) {
+		return extractRange(lo, hi).size();
+	}
+
+	/**
+	 * public AVLTree extractRange(int lo, int hi)
+	 *
+	 * removes all items with keys in [lo, hi] from the tree and returns them as a
+	 * new AVL tree. The removed subtrees are handed off as they are, only the
+	 * nodes on the two split paths are copied. Tombstones are handed off with
+	 * them and cost nothing extra. complexity: O(log n), plus for the m removed
+	 * nodes O(m) to move them to a usage order of their own in an LRU or LFU
+	 * tree, O(m log n) to move them to a value index of their own and O(m) to
+	 * drop their keys from the membership filter
+	 */
+	public AVLTree extractRange(int lo, int hi) {
+		cancelRebuild();
+		if (this.empty() || lo > hi) {
+			return emptyTree();
+		}
+		AVLTree[] outer = splitRange(getRoot(), lo, false); // keys < lo, keys >= lo
+		AVLTree[] inner = splitRange(outer[1].getRoot(), hi, true); // keys <= hi, keys > hi
+		AVLTree lessTree = outer[0];
+		AVLTree moreTree = inner[1];
+		if (!moreTree.empty()) {
+			// the smallest key of the right part serves as the join pivot
+			IAVLNode pivot = moreTree.minNode(moreTree.getRoot());
+			moreTree.removeNode(pivot);
+			lessTree.joinTrees(this.factory.createNode(pivot), moreTree);
+		}
+		this.setRoot(lessTree.getRoot());
+		this.resetExtremes();
+		inner[0].resetExtremes();
+		if (this.usageTails != null) {
+			moveUsageRec(inner[0].getRoot(), inner[0]);
+		}
+		if (this.valueIndex != null) {
+			inner[0].valueIndex = new ValueIndex();
+			indexRec(inner[0].getRoot(), this.valueIndex, false);
+			indexRec(inner[0].getRoot(), inner[0].valueIndex, true);
+		}
+		if (this.filter != null) {
+			removeFromFilterRec(inner[0].getRoot());
+			inner[0].filter = null;
+		}
+		invalidateHandles();
+		if (!inner[0].empty()) {
+			publish(ChangeEvent.Type.DELETE_RANGE, lo, hi, null);
+		}
+		return inner[0];
+	}
+
+	/**
+	 * private AVLTree[] splitRange(IAVLNode node, int x, boolean inclusive)
+	 *
+	 * splits the subtree of node into 2 trees [t1, t2] with keys(t1) < x <=
+	 * keys(t2), or keys(t1) <= x < keys(t2) if inclusive. Unlike split, x does not
+	 * have to exist in the tree. The subtree of node is destroyed. complexity:
+	 * O(log n)
+	 */
+	private AVLTree[] splitRange(IAVLNode node, int x, boolean inclusive) {
+		AVLTree[] parts;
+		if (node == null || !node.isRealNode()) {
+			parts = new AVLTree[2];
+			parts[0] = emptyTree();
+			parts[1] = emptyTree();
+			return parts;
+		}
+		IAVLNode left = node.getLeft();
+		IAVLNode right = node.getRight();
+		if (node.getKey() < x || (inclusive && node.getKey() == x)) {
+			// node and its left subtree go to t1, split continues to the right
+			parts = splitRange(right, x, inclusive);
+			AVLTree lessTree = emptyTree();
+			lessTree.root = left;
+			lessTree.root.setParent(null);
+			lessTree.joinTrees(this.factory.createNode(node), parts[0]);
+			parts[0] = lessTree;
+		} else {
+			// node and its right subtree go to t2, split continues to the left
+			parts = splitRange(left, x, inclusive);
+			AVLTree moreTree = emptyTree();
+			moreTree.root = right;
+			moreTree.root.setParent(null);
+			moreTree.joinTrees(this.factory.createNode(node), parts[1]);
+			parts[1] = moreTree;
+		}
+		return parts;
+	}
+
+	public static void printTree(IAVLNode root, int space) {
+		// Base case
+		if (root == null || !root.isRealNode()) {
+			System.out.println("the tree contains no elements");
+		} else {
+			printTreeRec(root, space);
+			System.out.println("----------------------------------------------------------");
+		}
+	}
+
+	private static void printTreeRec(IAVLNode root, int space) {
+		if (root != null && root.getKey() != -1) {
+			// Increase distance between levels
+			space += 10;
+
+			// Process right child first
+			printTreeRec(root.getRight(), space);
+
+			// Print current node after space
+			// count
+			System.out.print(System.lineSeparator());
+			for (int i = 10; i < space; i++)
+				System.out.print(" ");
+			System.out.print(root.getKey() + System.lineSeparator());
+
+			// Process left child
+			printTreeRec(root.getLeft(), space);
+		}
+	}
+
+	public static void printThisNode(IAVLNode node) {
+		if (node == null) {
+			System.out.println("The node is null");
+		} else {
+			System.out.println("node key: " + node.getKey() + System.lineSeparator() + "node info: " + node.getValue()
+					+ System.lineSeparator() + "node hight: " + node.getHeight());
+		}
+	}
+
+	/**
+	 * public interface IAVLNode ! Do not delete or modify this - otherwise all
+	 * tests will fail !
+	 */
+	public interface IAVLNode {
+		public int getKey(); // returns node's key (for virtuval node return -1)
+
+		public String getValue(); // returns node's value [info] (for virtuval node return null)
+
+		public void setLeft(IAVLNode node); // sets left child
+
+		public IAVLNode getLeft(); // returns left child (if there is no left child return null)
+
+		public void setRight(IAVLNode node); // sets right child
+
+		public IAVLNode getRight(); // returns right child (if there is no right child return null)
+
+		public void setParent(IAVLNode node); // sets parent
+
+		public IAVLNode getParent(); // returns the parent (if there is no parent return null)
+
+		public boolean isRealNode(); // Returns True if this is a non-virtual AVL node
+
+		public int getHeight(); // Returns the height of the node (-1 for virtual nodes)
+
+		public void setHeight(int height); // sets the height of the node
+
+		public int getSize(); // Returns the amount of sons the node has + 1 (for itself)
+
+		public void setSize(int s); // Sets the size of the node to s
+	}
+
+	/**
+	 * public class AVLNode
+	 *
+	 * If you wish to implement classes other than AVLTree (for example AVLNode), do
+	 * it in this file, not in another file. This class can and must be modified.
+	 * (It must implement IAVLNode)
+	 */
+	public class AVLNode implements IAVLNode {
+
+		private static final int DEFAULT_KEY = -1;
+		private String info;
+		private int key;
+		private IAVLNode left;
+		private IAVLNode right;
+		private IAVLNode parent;
+		private int height;
+		private int size;
+		// tombstones in the subtree of the node, kept by the tree like the size
+		private int tombstones;
+		// deletes of the node so far, handles taken before one are stale
+		private int generation;
+
+		/*
+		 * public AVLNode() { this(DEFAULT_KEY, null, -1); }
+		 */
+
+		public AVLNode() {
+			this(DEFAULT_KEY, null);
+			this.height = -1;
+			this.size = 0;
+		}
+
+		public AVLNode(int key, String info) {
+			this.info = info;
+			this.key = key;
+			if (key != -1) {
+				this.left = new AVLNode();
+				this.left.setParent(this);
+				this.right = new AVLNode();
+				this.right.setParent(this);
+			} else {
+				this.left = null;
+				this.right = null;
+			}
+			this.parent = null;
+			this.height = 0;
+			this.size = 1;
+
+		}
+
+		/*
+		 * public AVLNode(int key, String info, int height) { this.info = info; this.key
+		 * = key; this.left = new AVLNode(); this.right = new AVLNode(); this.parent =
+		 * null; this.height = height;
+		 * 
+		 * }
+		 */
+
+		public int getKey() {
+			return this.key;
+		}
+
+		public String getValue() {
+			return this.info;
+		}
+
+		// trees change info only through their own methods, which keep their
+		// indexes and hashes up to date
+		public void setValue(String value) {
+			this.info = value;
+		}
+
+		// true if the node is a tombstone of lazy deletion
+		public boolean isDeleted() {
+			return this.info == DELETED;
+		}
+
+		public void setLeft(IAVLNode node) {
+			this.left = node;
+		}
+
+		public IAVLNode getLeft() {
+			return this.left;
+		}
+
+		public void setRight(IAVLNode node) {
+			this.right = node;
+		}
+
+		public IAVLNode getRight() {
+			return this.right;
+		}
+
+		public void setParent(IAVLNode node) {
+			this.parent = node;
+		}
+
+		public IAVLNode getParent() {
+			return this.parent;
+		}
+
+		// Returns True if this is a non-virtual AVL node
+		public boolean isRealNode() {
+			if (key == -1) {
+				return false;
+			}
+			return true;
+		}
+
+		public void setHeight(int height) {
+			this.height = height;
+		}
+
+		public int getHeight() {
+			return this.height;
+		}
+
+		public int getSize() {
+			return this.size;
+		}
+
+		public void setSize(int s) {
+			this.size = s;
+
+		}
+
+	}
+
+	public class NodeFactory {
+
+		public IAVLNode createNode(int k, String v) {
+			return new AVLNode(k, v);
+		}
+
+		public IAVLNode createNode() {
+			return new AVLNode();
+		}
+
+		// returns a new unlinked node with the key and info of node, a tombstone if
+		// node is one
+		public IAVLNode createNode(IAVLNode node) {
+			if (isDeleted(node)) {
+				// the marker must not be stored as an info
+				AVLNode copy = (AVLNode) createNode(node.getKey(), "");
+				copy.setValue(DELETED);
+				return copy;
+			}
+			return createNode(node.getKey(), node.getValue());
+		}
+	}
+
+	/**
+	 * public class ArenaNode
+	 *
+	 * An AVLNode whose info is kept in the tree's ValueArena, referenced by its
+	 * offset. The info String is only created when getValue() is called.
+	 */
+	public class ArenaNode extends AVLNode {
+
+		private static final int DELETED_REF = -2;
+		private int ref;
+
+		public ArenaNode(int key, int ref) {
+			super(key, null);
+			this.ref = ref;
+		}
+
+		public String getValue() {
+			return this.ref == DELETED_REF ? DELETED : AVLTree.this.arena.get(this.ref);
+		}
+
+		public void setValue(String value) {
+			this.ref = value == DELETED ? DELETED_REF : AVLTree.this.arena.put(value);
+		}
+
+		public boolean isDeleted() {
+			return this.ref == DELETED_REF;
+		}
+	}
+
+	/**
+	 * public class TrackedNode
+	 *
+	 * An AVLNode of an LRU or LFU tree, linked into the tree's usage order
+	 */
+	public class TrackedNode extends AVLNode {
+
+		private TrackedNode prevUse;
+		private TrackedNode nextUse;
+		private int uses;
+
+		public TrackedNode(int key, String info) {
+			super(key, info);
+		}
+	}
+
+	public class TrackedNodeFactory extends NodeFactory {
+
+		public IAVLNode createNode(int k, String v) {
+			return new TrackedNode(k, v);
+		}
+
+		public IAVLNode createNode(IAVLNode node) {
+			TrackedNode copy = new TrackedNode(node.getKey(), node.getValue());
+			if (node instanceof TrackedNode) {
+				replaceUsage((TrackedNode) node, copy);
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * public class HashedNode
+	 *
+	 * An AVLNode of a hashed tree, keeping the hash of its own item and the sum
+	 * of the item hashes in its subtree
+	 */
+	public class HashedNode extends AVLNode {
+
+		private long itemHash;
+		private long hash;
+
+		public HashedNode(int key, String info) {
+			this(key, info, itemHash(key, info));
+		}
+
+		private HashedNode(int key, String info, long itemHash) {
+			super(key, info);
+			this.itemHash = itemHash;
+			this.hash = itemHash;
+		}
+
+		// the subtree hashes of the node and its ancestors are left to the tree
+		public void setValue(String value) {
+			super.setValue(value);
+			this.itemHash = value == DELETED ? 0 : itemHash(getKey(), value);
+		}
+	}
+
+	public class HashedNodeFactory extends NodeFactory {
+
+		public IAVLNode createNode(int k, String v) {
+			return new HashedNode(k, v);
+		}
+
+		public IAVLNode createNode(IAVLNode node) {
+			if (node instanceof HashedNode) {
+				return new HashedNode(node.getKey(), node.getValue(), ((HashedNode) node).itemHash);
+			}
+			return super.createNode(node);
+		}
+	}
+
+	public class ArenaNodeFactory extends NodeFactory {
+
+		private final ValueArena arena;
+
+		public ArenaNodeFactory(ValueArena arena) {
+			this.arena = arena;
+		}
+
+		public IAVLNode createNode(int k, String v) {
+			return new ArenaNode(k, this.arena.put(v));
+		}
+
+		public IAVLNode createNode(IAVLNode node) {
+			if (node instanceof ArenaNode) {
+				// same arena, the bytes are shared rather than copied
+				return new ArenaNode(node.getKey(), ((ArenaNode) node).ref);
+			}
+			return super.createNode(node);
+		}
+	}
+
+	/**
+	 * public interface IntObjFunction<T, R>
+	 *
+	 * A function of an int key and an object, as used by replaceAll
+	 */
+	@FunctionalInterface
+	public interface IntObjFunction<T, R> {
+
+		R apply(int key, T value);
+	}
+
+	/**
+	 * public static class Handle
+	 *
+	 * A reference to the node of an item, returned by insertHandle, that lets
+	 * the tree reach the item without a search. Its scope is shared by all
+	 * handles of a tree and forwards to the scope of the tree it was joined
+	 * into, so joins and invalidation take O(1) regardless of the number of
+	 * handles.
+	 */
+	public static class Handle {
+
+		private final IAVLNode node;
+		private final int generation;
+		private HandleScope scope;
+
+		Handle(IAVLNode node, HandleScope scope) {
+			this.node = node;
+			this.generation = ((AVLNode) node).generation;
+			this.scope = scope;
+		}
+
+		public int getKey() {
+			return this.node.getKey();
+		}
+
+		public String getValue() {
+			return this.node.getValue();
+		}
+	}
+
+	private static class HandleScope {
+
+		private AVLTree tree;
+		private HandleScope forward;
+
+		HandleScope(AVLTree tree) {
+			this.tree = tree;
+		}
+	}
+
+	/**
+	 * private static class ValueIndex
+	 *
+	 * The secondary index of a tree: a TreeMap from info to an AVLTree of the
+	 * keys holding it, and one more AVLTree for the keys with a null info
+	 */
+	private static class ValueIndex {
+
+		private final TreeMap<String, AVLTree> keys = new TreeMap<>();
+		private final AVLTree nullKeys = new AVLTree();
+		private int size;
+
+		void add(int key, String value) {
+			if (keySet(value, true).insert(key, null) >= 0) {
+				this.size++;
+			}
+		}
+
+		void remove(int key, String value) {
+			AVLTree set = keySet(value, false);
+			if (set != null && set.delete(key) >= 0) {
+				this.size--;
+				if (value != null && set.empty()) {
+					this.keys.remove(value);
+				}
+			}
+		}
+
+		AVLTree keySet(String value, boolean create) {
+			if (value == null) {
+				return this.nullKeys;
+			}
+			AVLTree set = this.keys.get(value);
+			if (set == null && create) {
+				set = new AVLTree();
+				this.keys.put(value, set);
+			}
+			return set;
+		}
+	}
+
+	/**
+	 * public static class ValueArena
+	 *
+	 * An append-only store of UTF-8 strings in one byte array. Every string is
+	 * written once as a varint length followed by its bytes and referenced by the
+	 * int offset of that record, -1 stands for null. With deduplication equal
+	 * strings share a single record, found through an open addressing table of
+	 * offsets. Records are never freed, so an arena should be shared only by trees
+	 * whose info is mostly repeated or long lived. Not thread safe.
+	 */
+	public static class ValueArena {
+
+		private byte[] data;
+		private int used;
+		private final boolean deduplicate;
+		private int[] table; // record offset + 1, 0 for an empty slot
+		private int records;
+
+		public ValueArena() {
+			this(true);
+		}
+
+		public ValueArena(boolean deduplicate) {
+			this.data = new byte[1 << 12];
+			this.deduplicate = deduplicate;
+			this.table = deduplicate ? new int[1 << 8] : null;
+		}
+
+		/**
+		 * public int put(String value)
+		 *
+		 * stores value and returns its reference
+		 */
+		public int put(String value) {
+			if (value == null) {
+				return -1;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			return put(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * public int put(byte[] bytes, int offset, int length)
+		 *
+		 * stores the UTF-8 bytes and returns their reference
+		 */
+		public int put(byte[] bytes, int offset, int length) {
+			int slot = -1;
+			if (this.deduplicate) {
+				int mask = this.table.length - 1;
+				slot = hash(bytes, offset, length) & mask;
+				while (this.table[slot] != 0) {
+					int ref = this.table[slot] - 1;
+					if (equals(ref, bytes, offset, length)) {
+						return ref;
+					}
+					slot = (slot + 1) & mask;
+				}
+			}
+			if ((long) this.used + length + 5 > Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("value arena is full");
+			}
+			if (this.used + length + 5 > this.data.length) {
+				this.data = Arrays.copyOf(this.data,
+						(int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * this.data.length, this.used + length + 5L)));
+			}
+			int ref = this.used;
+			int pos = ref;
+			int rest = length;
+			while (rest >= 0x80) {
+				this.data[pos++] = (byte) (rest | 0x80);
+				rest >>>= 7;
+			}
+			this.data[pos++] = (byte) rest;
+			System.arraycopy(bytes, offset, this.data, pos, length);
+			this.used = pos + length;
+			if (this.deduplicate) {
+				this.table[slot] = ref + 1;
+				this.records++;
+				if (2 * this.records > this.table.length) {
+					rehash();
+				}
+			}
+			return ref;
+		}
+
+		/**
+		 * public String get(int ref)
+		 *
+		 * returns the string stored at ref
+		 */
+		public String get(int ref) {
+			if (ref < 0) {
+				return null;
+			}
+			return new String(this.data, start(ref), length(ref), StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * public int length(int ref)
+		 *
+		 * returns the number of UTF-8 bytes stored at ref, -1 for null
+		 */
+		public int length(int ref) {
+			if (ref < 0) {
+				return -1;
+			}
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = this.data[ref++];
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return length;
+		}
+
+		/**
+		 * public int getBytes(int ref, byte[] dst, int offset)
+		 *
+		 * copies the UTF-8 bytes stored at ref into dst at offset, returns their
+		 * number or -1 for null
+		 */
+		public int getBytes(int ref, byte[] dst, int offset) {
+			int length = length(ref);
+			if (length > 0) {
+				System.arraycopy(this.data, start(ref), dst, offset, length);
+			}
+			return length;
+		}
+
+		/**
+		 * public long memoryUsage()
+		 *
+		 * returns the number of bytes allocated by the arena
+		 */
+		public long memoryUsage() {
+			return this.data.length + (this.table == null ? 0L : 4L * this.table.length);
+		}
+
+		/**
+		 * public int bytesUsed()
+		 *
+		 * returns the number of bytes taken by stored records
+		 */
+		public int bytesUsed() {
+			return this.used;
+		}
+
+		// offset of the first byte after the length of the record at ref
+		private int start(int ref) {
+			while (this.data[ref] < 0) {
+				ref++;
+			}
+			return ref + 1;
+		}
+
+		private boolean equals(int ref, byte[] bytes, int offset, int length) {
+			return length(ref) == length && Arrays.equals(this.data, start(ref), start(ref) + length, bytes, offset,
+					offset + length);
+		}
+
+		private void rehash() {
+			int[] old = this.table;
+			this.table = new int[old.length * 2];
+			int mask = this.table.length - 1;
+			for (int entry : old) {
+				if (entry != 0) {
+					int ref = entry - 1;
+					int slot = hash(this.data, start(ref), length(ref)) & mask;
+					while (this.table[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					this.table[slot] = entry;
+				}
+			}
+		}
+
+		// FNV-1a
+		private static int hash(byte[] bytes, int offset, int length) {
+			int hash = 0x811C9DC5;
+			for (int i = offset; i < offset + length; i++) {
+				hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+			}
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	/**
+	 * public static class MembershipFilter
+	 *
+	 * A counting Bloom filter of int keys. Every key increments hashCount 4-bit
+	 * counters, packed 16 to a long, and a key may be in the set only if all its
+	 * counters are nonzero. Counters support removal. A counter that reaches 15
+	 * stays there, since after an overflow it is no longer known when it may drop
+	 * to zero. The counter count is a power of two and positions come from double
+	 * hashing of one 64-bit mix of the key. Not thread safe.
+	 */
+	public static class MembershipFilter {
+
+		private static final int SATURATED = 15;
+
+		private final long[] counters;
+		private final int mask;
+		private final int hashCount;
+		private final int expectedItems;
+		private final double targetRate;
+		private int nonzero;
+		private long items;
+
+		public MembershipFilter(int expectedItems, double falsePositiveRate) {
+			if (expectedItems < 0 || !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+				throw new IllegalArgumentException("invalid filter " + expectedItems + ", " + falsePositiveRate);
+			}
+			this.expectedItems = expectedItems;
+			this.targetRate = falsePositiveRate;
+			// optimal m / n = -ln p / ln^2 2 and k = m / n * ln 2
+			double perItem = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+			long wanted = Math.max(64, (long) Math.ceil(Math.max(expectedItems, 1) * perItem));
+			int slots = (int) Math.min(1L << 30, Long.highestOneBit(wanted - 1) << 1);
+			this.counters = new long[slots / 16];
+			this.mask = slots - 1;
+			this.hashCount = Math.max(1, (int) Math.round(perItem * Math.log(2)));
+		}
+
+		/**
+		 * public boolean mightContain(int k)
+		 *
+		 * returns false if k is certainly not in the set. complexity: O(hashCount)
+		 */
+		public boolean mightContain(int k) {
+			long hash = mix(k);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < this.hashCount; i++) {
+				if (counter((h1 + i * h2) & this.mask) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * public void add(int k)
+		 *
+		 * adds one occurrence of k
+		 */
+		public void add(int k) {
+			long hash = mix(k);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < this.hashCount; i++) {
+				int slot = (h1 + i * h2) & this.mask;
+				int count = counter(slot);
+				if (count < SATURATED) {
+					if (count == 0) {
+						this.nonzero++;
+					}
+					this.counters[slot >>> 4] += 1L << ((slot & 15) << 2);
+				}
+			}
+			this.items++;
+		}
+
+		/**
+		 * public void remove(int k)
+		 *
+		 * removes one occurrence of k. precondition: k was added
+		 */
+		public void remove(int k) {
+			long hash = mix(k);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < this.hashCount; i++) {
+				int slot = (h1 + i * h2) & this.mask;
+				int count = counter(slot);
+				if (count > 0 && count < SATURATED) {
+					if (count == 1) {
+						this.nonzero--;
+					}
+					this.counters[slot >>> 4] -= 1L << ((slot & 15) << 2);
+				}
+			}
+			this.items--;
+		}
+
+		/**
+		 * public boolean addAll(MembershipFilter other)
+		 *
+		 * adds the keys of other if it has the same geometry and returns true,
+		 * otherwise returns false and leaves this filter unchanged. complexity: O(m)
+		 * for m counters
+		 */
+		public boolean addAll(MembershipFilter other) {
+			if (other == null || other.counters.length != this.counters.length
+					|| other.hashCount != this.hashCount) {
+				return false;
+			}
+			for (int slot = 0; slot <= this.mask; slot++) {
+				int count = counter(slot);
+				int sum = Math.min(SATURATED, count + other.counter(slot));
+				if (count == SATURATED || sum == count) {
+					continue;
+				}
+				if (count == 0) {
+					this.nonzero++;
+				}
+				this.counters[slot >>> 4] += (long) (sum - count) << ((slot & 15) << 2);
+			}
+			this.items += other.items;
+			return true;
+		}
+
+		/**
+		 * public double falsePositiveRate()
+		 *
+		 * returns the estimated false positive rate, the chance that all hashCount
+		 * counters of an absent key are nonzero
+		 */
+		public double falsePositiveRate() {
+			return Math.pow((double) this.nonzero / (this.mask + 1), this.hashCount);
+		}
+
+		/**
+		 * public long memoryUsage()
+		 *
+		 * returns the number of bytes taken by the counters
+		 */
+		public long memoryUsage() {
+			return 8L * this.counters.length;
+		}
+
+		/**
+		 * public long size()
+		 *
+		 * returns the number of added and not removed keys
+		 */
+		public long size() {
+			return this.items;
+		}
+
+		/**
+		 * public int hashCount()
+		 *
+		 * returns the number of counters per key
+		 */
+		public int hashCount() {
+			return this.hashCount;
+		}
+
+		private int counter(int slot) {
+			return (int) (this.counters[slot >>> 4] >>> ((slot & 15) << 2)) & 15;
+		}
+
+		// the SplitMix64 finalizer
+		private static long mix(int k) {
+			long z = k * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+	}
+
+	/**
+	 * public static class AVLSequence
+	 *
+	 * A sequence of infos in which the position of an item is given by the subtree
+	 * sizes instead of a key. It is kept in an AVLTree whose keys are only unique
+	 * node ids, so the tree's rotations, size maintenance, delete and join are
+	 * reused as they are, while every descent goes by size. Ids come from a
+	 * global counter, so sequences can be concatenated; they are unique for the
+	 * first 2^31 inserts. All operations are O(log n).
+	 */
+	public static class AVLSequence {
+
+		private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+		private AVLTree tree = new AVLTree();
+
+		/**
+		 * public int size()
+		 *
+		 * Returns the number of items in the sequence
+		 */
+		public int size() {
+			return this.tree.size();
+		}
+
+		/**
+		 * public String get(int index)
+		 *
+		 * Returns the info at index. precondition: 0 <= index < size()
+		 */
+		public String get(int index) {
+			return nodeAt(index).getValue();
+		}
+
+		/**
+		 * public void insertAt(int index, String value)
+		 *
+		 * Inserts value at index, shifting the following items by one.
+		 * precondition: 0 <= index <= size()
+		 */
+		public void insertAt(int index, String value) {
+			checkIndex(index, size() + 1);
+			IAVLNode node = this.tree.factory.createNode(nextId(), value);
+			if (this.tree.empty()) {
+				this.tree.setRoot(node);
+				return;
+			}
+			IAVLNode father;
+			if (index == size()) {
+				father = this.tree.maxNode(this.tree.getRoot());
+				father.setRight(node);
+			} else {
+				// attach as left son of the item at index, or as right son of its
+				// predecessor in its left subtree
+				father = nodeAt(index);
+				if (father.getLeft().isRealNode()) {
+					father = this.tree.maxNode(father.getLeft());
+					father.setRight(node);
+				} else {
+					father.setLeft(node);
+				}
+			}
+			node.setParent(father);
+			IAVLNode pointer = father;
+			while (pointer != null) {
+				pointer.setSize(pointer.getSize() + 1);
+				pointer = pointer.getParent();
+			}
+			this.tree.rebalanceInsert(node);
+		}
+
+		/**
+		 * public String removeAt(int index)
+		 *
+		 * Removes the item at index and returns its info. precondition: 0 <= index
+		 * < size()
+		 */
+		public String removeAt(int index) {
+			IAVLNode node = nodeAt(index);
+			this.tree.removeNode(node);
+			return node.getValue();
+		}
+
+		/**
+		 * public AVLSequence split(int index)
+		 *
+		 * Keeps the first index items in this sequence and returns the others as a
+		 * new sequence. precondition: 0 <= index <= size()
+		 */
+		public AVLSequence split(int index) {
+			checkIndex(index, size() + 1);
+			AVLTree[] parts = splitAt(this.tree.getRoot(), index);
+			this.tree = parts[0];
+			AVLSequence rest = new AVLSequence();
+			rest.tree = parts[1];
+			return rest;
+		}
+
+		/**
+		 * public void concat(AVLSequence other)
+		 *
+		 * Appends the items of other to this sequence, other becomes empty.
+		 */
+		public void concat(AVLSequence other) {
+			if (other.tree.empty()) {
+				return;
+			}
+			AVLTree rest = other.tree;
+			other.tree = new AVLTree();
+			if (this.tree.empty()) {
+				this.tree = rest;
+				return;
+			}
+			// the first item of other joins the two trees
+			IAVLNode pivot = rest.minNode(rest.getRoot());
+			rest.removeNode(pivot);
+			this.tree.joinTrees(this.tree.factory.createNode(pivot), rest, true);
+		}
+
+		/**
+		 * public String[] toArray()
+		 *
+		 * Returns the infos of the sequence in order
+		 */
+		public String[] toArray() {
+			return this.tree.infoToArray();
+		}
+
+		private IAVLNode nodeAt(int index) {
+			checkIndex(index, size());
+			IAVLNode node = this.tree.getRoot();
+			while (node.getLeft().getSize() != index) {
+				if (index < node.getLeft().getSize()) {
+					node = node.getLeft();
+				} else {
+					index -= node.getLeft().getSize() + 1;
+					node = node.getRight();
+				}
+			}
+			return node;
+		}
+
+		/**
+		 * splits the subtree of node into trees with its first index items and the
+		 * rest, the positional counterpart of splitRange
+		 */
+		private AVLTree[] splitAt(IAVLNode node, int index) {
+			AVLTree[] parts;
+			if (node == null || !node.isRealNode()) {
+				parts = new AVLTree[2];
+				parts[0] = new AVLTree();
+				parts[1] = new AVLTree();
+				return parts;
+			}
+			IAVLNode left = node.getLeft();
+			IAVLNode right = node.getRight();
+			int leftSize = left.getSize();
+			if (index <= leftSize) {
+				// node and its right subtree go after the split
+				parts = splitAt(left, index);
+				AVLTree moreTree = new AVLTree();
+				moreTree.root = right;
+				moreTree.root.setParent(null);
+				moreTree.joinTrees(this.tree.factory.createNode(node), parts[1], false);
+				parts[1] = moreTree;
+			} else {
+				parts = splitAt(right, index - leftSize - 1);
+				AVLTree lessTree = new AVLTree();
+				lessTree.root = left;
+				lessTree.root.setParent(null);
+				lessTree.joinTrees(this.tree.factory.createNode(node), parts[0], true);
+				parts[0] = lessTree;
+			}
+			return parts;
+		}
+
+		private static void checkIndex(int index, int bound) {
+			if (index < 0 || index >= bound) {
+				throw new IndexOutOfBoundsException("index " + index + " out of bounds for length " + bound);
+			}
+		}
+
+		private static int nextId() {
+			return NEXT_ID.getAndIncrement() & Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * public static class AdaptiveAVLMap
+	 *
+	 * Map from int keys to infos with the search, insert, delete, rank and select
+	 * of AVLTree, which switches to a direct-address layout while its keys are
+	 * dense. It starts as an AVLTree. Once it holds at least MIN_DENSE_SIZE items
+	 * and they fill at least half of the key span [minKey, maxKey], the items move
+	 * to an info array indexed by key - base and a presence bitmap with a count
+	 * of set bits per block of 512 keys in a Fenwick tree. search, insert and
+	 * delete are then O(1), rank and select O(log n). When the items fill less
+	 * than a quarter of the span, or fewer than half of MIN_DENSE_SIZE are left,
+	 * they go back into a balanced AVLTree, built in O(n). Both switches take
+	 * O(span). A dense map needs about 4 bytes per key in the span, compared with
+	 * three node objects per item in the tree. Keys are those an AVLTree accepts,
+	 * so -1, which marks virtual nodes, is not a key in either layout.
+	 */
+	public static class AdaptiveAVLMap {
+
+		public static final int MIN_DENSE_SIZE = 1024;
+		private static final int BLOCK_SHIFT = 9; // keys per rank block, as a power of two
+		private static final int WORDS_PER_BLOCK = 1 << (BLOCK_SHIFT - 6);
+		private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+		// the tree while sparse, null while dense
+		private AVLTree tree = new AVLTree();
+		// the dense layout: key k is at index k - base
+		private int base;
+		private String[] values;
+		private long[] bits;
+		private int[] blockCounts; // Fenwick tree over blocks, 1-based
+		private int size;
+		private int minKey;
+		private int maxKey;
+
+		/**
+		 * public boolean isDense()
+		 *
+		 * returns true if the items are held in the direct-address layout
+		 */
+		public boolean isDense() {
+			return this.tree == null;
+		}
+
+		/**
+		 * public int size()
+		 *
+		 * returns the number of items
+		 */
+		public int size() {
+			return this.tree != null ? this.tree.size() : this.size;
+		}
+
+		/**
+		 * public boolean empty()
+		 *
+		 * returns true if there are no items
+		 */
+		public boolean empty() {
+			return size() == 0;
+		}
+
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of the item with key k, or null if there is none.
+		 * complexity: O(1) while dense
+		 */
+		public String search(int k) {
+			if (this.tree != null) {
+				return this.tree.search(k);
+			}
+			long index = (long) k - this.base;
+			return contains(index) ? this.values[(int) index] : null;
+		}
+
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i if there is none yet. Returns -1 if
+		 * the key exists, otherwise the number of rebalancing operations, which is
+		 * 0 while dense. Throws IllegalArgumentException for key -1, which the
+		 * dense layout could hold but the tree it turns back into could not.
+		 * complexity: O(1) amortized while dense
+		 */
+		public int insert(int k, String i) {
+			if (k == -1) {
+				throw new IllegalArgumentException("-1 is not a valid key");
+			}
+			if (this.tree != null) {
+				int result = this.tree.insert(k, i);
+				if (result != -1) {
+					checkDensity();
+				}
+				return result;
+			}
+			long index = (long) k - this.base;
+			if (contains(index)) {
+				return -1;
+			}
+			if (index < 0 || index >= this.values.length) {
+				int lo = Math.min(k, this.minKey);
+				int hi = Math.max(k, this.maxKey);
+				if (4L * (this.size + 1) < span(lo, hi) || !allocate(lo, hi)) {
+					toTree();
+					return this.tree.insert(k, i);
+				}
+				index = (long) k - this.base;
+			}
+			set((int) index, i);
+			this.minKey = Math.min(this.minKey, k);
+			this.maxKey = Math.max(this.maxKey, k);
+			return 0;
+		}
+
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes the item with key k if there is one. Returns -1 if there is none,
+		 * otherwise the number of rebalancing operations, which is 0 while dense.
+		 * complexity: O(1) amortized while dense
+		 */
+		public int delete(int k) {
+			if (this.tree != null) {
+				// removing an outlier can make the rest dense
+				int result = this.tree.delete(k);
+				if (result != -1) {
+					checkDensity();
+				}
+				return result;
+			}
+			long index = (long) k - this.base;
+			if (!contains(index)) {
+				return -1;
+			}
+			clear((int) index);
+			if (this.size == 0 || 2 * this.size < MIN_DENSE_SIZE
+					|| 4L * this.size < span(this.minKey, this.maxKey)) {
+				toTree();
+				return 0;
+			}
+			// the extremes move to the nearest remaining keys
+			if (k == this.minKey) {
+				this.minKey = this.base + nextSet((int) index);
+			}
+			if (k == this.maxKey) {
+				this.maxKey = this.base + previousSet((int) index);
+			}
+			return 0;
+		}
+
+		/**
+		 * public String min()
+		 *
+		 * returns the info of the item with the smallest key, or null if empty
+		 */
+		public String min() {
+			if (this.tree != null) {
+				return this.tree.min();
+			}
+			return this.values[this.minKey - this.base];
+		}
+
+		/**
+		 * public String max()
+		 *
+		 * returns the info of the item with the largest key, or null if empty
+		 */
+		public String max() {
+			if (this.tree != null) {
+				return this.tree.max();
+			}
+			return this.values[this.maxKey - this.base];
+		}
+
+		/**
+		 * public int minKey()
+		 *
+		 * returns the smallest key, or -1 if empty
+		 */
+		public int minKey() {
+			return this.tree != null ? this.tree.minKey() : this.minKey;
+		}
+
+		/**
+		 * public int maxKey()
+		 *
+		 * returns the largest key, or -1 if empty
+		 */
+		public int maxKey() {
+			return this.tree != null ? this.tree.maxKey() : this.maxKey;
+		}
+
+		/**
+		 * public int rank(int k)
+		 *
+		 * returns the number of keys smaller than k. complexity: O(log n)
+		 */
+		public int rank(int k) {
+			if (this.tree != null) {
+				return this.tree.rank(k);
+			}
+			if (k <= this.minKey) {
+				return 0;
+			}
+			if (k > this.maxKey) {
+				return this.size;
+			}
+			int index = k - this.base;
+			int block = index >>> BLOCK_SHIFT;
+			int count = 0;
+			for (int b = block; b > 0; b -= b & -b) {
+				count += this.blockCounts[b];
+			}
+			int word = index >>> 6;
+			for (int w = block * WORDS_PER_BLOCK; w < word; w++) {
+				count += Long.bitCount(this.bits[w]);
+			}
+			return count + Long.bitCount(this.bits[word] & ((1L << index) - 1));
+		}
+
+		/**
+		 * public int select(int i)
+		 *
+		 * returns the i-th smallest key, counting from 0. precondition: 0 <= i <
+		 * size() complexity: O(log n)
+		 */
+		public int select(int i) {
+			if (this.tree != null) {
+				return this.tree.select(i);
+			}
+			if (i < 0 || i >= this.size) {
+				throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + this.size);
+			}
+			// descend the Fenwick tree to the block holding the i-th key
+			int block = 0;
+			for (int step = Integer.highestOneBit(this.blockCounts.length - 1); step > 0; step >>>= 1) {
+				int next = block + step;
+				if (next < this.blockCounts.length && this.blockCounts[next] <= i) {
+					block = next;
+					i -= this.blockCounts[next];
+				}
+			}
+			int word = block * WORDS_PER_BLOCK;
+			while (Long.bitCount(this.bits[word]) <= i) {
+				i -= Long.bitCount(this.bits[word]);
+				word++;
+			}
+			long bitsLeft = this.bits[word];
+			for (; i > 0; i--) {
+				bitsLeft &= bitsLeft - 1;
+			}
+			return this.base + (word << 6) + Long.numberOfTrailingZeros(bitsLeft);
+		}
+
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * returns the sorted keys
+		 */
+		public int[] keysToArray() {
+			if (this.tree != null) {
+				return this.tree.keysToArray();
+			}
+			int[] keys = new int[this.size];
+			export(keys, null);
+			return keys;
+		}
+
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * returns the infos, sorted by their keys
+		 */
+		public String[] infoToArray() {
+			if (this.tree != null) {
+				return this.tree.infoToArray();
+			}
+			String[] infos = new String[this.size];
+			export(null, infos);
+			return infos;
+		}
+
+		private static long span(int lo, int hi) {
+			return (long) hi - lo + 1;
+		}
+
+		private boolean contains(long index) {
+			return index >= 0 && index < this.values.length && (this.bits[(int) (index >>> 6)] & (1L << index)) != 0;
+		}
+
+		private void set(int index, String value) {
+			this.bits[index >>> 6] |= 1L << index;
+			this.values[index] = value;
+			this.size++;
+			for (int b = (index >>> BLOCK_SHIFT) + 1; b < this.blockCounts.length; b += b & -b) {
+				this.blockCounts[b]++;
+			}
+		}
+
+		private void clear(int index) {
+			this.bits[index >>> 6] &= ~(1L << index);
+			this.values[index] = null;
+			this.size--;
+			for (int b = (index >>> BLOCK_SHIFT) + 1; b < this.blockCounts.length; b += b & -b) {
+				this.blockCounts[b]--;
+			}
+		}
+
+		// index of the first key after index, there must be one
+		private int nextSet(int index) {
+			int word = (index + 1) >>> 6;
+			long rest = index + 1 < this.values.length ? this.bits[word] & (-1L << (index + 1)) : 0;
+			while (rest == 0) {
+				rest = this.bits[++word];
+			}
+			return (word << 6) + Long.numberOfTrailingZeros(rest);
+		}
+
+		// index of the last key before index, there must be one
+		private int previousSet(int index) {
+			int word = (index - 1) >>> 6;
+			long rest = index > 0 ? this.bits[word] & (-1L >>> (63 - ((index - 1) & 63))) : 0;
+			while (rest == 0) {
+				rest = this.bits[--word];
+			}
+			return (word << 6) + 63 - Long.numberOfLeadingZeros(rest);
+		}
+
+		/**
+		 * allocates the dense layout for keys in [lo, hi] with an eighth of the span
+		 * as headroom on each side, and moves the current items into it. Returns
+		 * false if the span does not fit in an array.
+		 */
+		private boolean allocate(int lo, int hi) {
+			long span = span(lo, hi);
+			long slack = span / 8 + WORDS_PER_BLOCK * 64;
+			long from = Math.max(Integer.MIN_VALUE, lo - slack);
+			long capacity = Math.min((long) Integer.MAX_VALUE, hi + slack) - from + 1;
+			if (capacity > MAX_CAPACITY) {
+				return false;
+			}
+			String[] oldValues = this.values;
+			long[] oldBits = this.bits;
+			int oldBase = this.base;
+			this.base = (int) from;
+			this.values = new String[(int) capacity];
+			this.bits = new long[(int) ((capacity + 63) >>> 6)];
+			this.blockCounts = new int[(int) ((capacity + (1 << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT) + 1];
+			this.size = 0;
+			if (oldValues != null) {
+				int shift = oldBase - this.base;
+				for (int w = 0; w < oldBits.length; w++) {
+					for (long word = oldBits[w]; word != 0; word &= word - 1) {
+						int index = (w << 6) + Long.numberOfTrailingZeros(word);
+						place(index + shift, oldValues[index]);
+					}
+				}
+				countBlocks();
+			}
+			return true;
+		}
+
+		// sets a bit and value without maintaining the counts, see countBlocks
+		private void place(int index, String value) {
+			this.bits[index >>> 6] |= 1L << index;
+			this.values[index] = value;
+			this.size++;
+		}
+
+		// builds the Fenwick tree of block counts from the bitmap in O(span / 64)
+		private void countBlocks() {
+			int[] counts = this.blockCounts;
+			for (int w = 0; w < this.bits.length; w++) {
+				counts[(w / WORDS_PER_BLOCK) + 1] += Long.bitCount(this.bits[w]);
+			}
+			for (int b = 1; b < counts.length; b++) {
+				int parent = b + (b & -b);
+				if (parent < counts.length) {
+					counts[parent] += counts[b];
+				}
+			}
+		}
+
+		private void checkDensity() {
+			if (this.tree.size() >= MIN_DENSE_SIZE
+					&& 2L * this.tree.size() >= span(this.tree.minKey(), this.tree.maxKey())) {
+				toDense();
+			}
+		}
+
+		private void toDense() {
+			int n = this.tree.size();
+			int[] keys = new int[n];
+			String[] infos = new String[n];
+			this.tree.exportTo(keys, infos, 0);
+			this.values = null;
+			if (!allocate(keys[0], keys[n - 1])) {
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				place(keys[i] - this.base, infos[i]);
+			}
+			countBlocks();
+			this.minKey = keys[0];
+			this.maxKey = keys[n - 1];
+			this.tree = null;
+		}
+
+		// moves the items into a perfectly balanced tree, see AVLTree.link
+		private void toTree() {
+			AVLTree rebuilt = new AVLTree();
+			IAVLNode[] nodes = new IAVLNode[this.size];
+			int n = 0;
+			for (int w = 0; w < this.bits.length; w++) {
+				for (long word = this.bits[w]; word != 0; word &= word - 1) {
+					int index = (w << 6) + Long.numberOfTrailingZeros(word);
+					nodes[n++] = rebuilt.factory.createNode(this.base + index, this.values[index]);
+				}
+			}
+			if (n > 0) {
+				rebuilt.setRoot(rebuilt.link(nodes, 0, n, null));
+				rebuilt.resetExtremes();
+			}
+			this.tree = rebuilt;
+			this.values = null;
+			this.bits = null;
+			this.blockCounts = null;
+			this.size = 0;
+		}
+
+		private void export(int[] keys, String[] infos) {
+			int n = 0;
+			for (int w = 0; w < this.bits.length; w++) {
+				for (long word = this.bits[w]; word != 0; word &= word - 1) {
+					int index = (w << 6) + Long.numberOfTrailingZeros(word);
+					if (keys != null) {
+						keys[n] = this.base + index;
+					}
+					if (infos != null) {
+						infos[n] = this.values[index];
+					}
+					n++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * public static class ShardedAVLStore
+	 *
+	 * Key-value store that partitions the key space into ranges, each held by its
+	 * own AVLTree behind its own lock, so writes to different ranges run in
+	 * parallel. Requests are routed through an immutable shard map that is
+	 * replaced as a whole when shards change. A shard that grows past
+	 * splitThreshold is divided at its median key with split, a shard that
+	 * shrinks below a quarter of it is joined with a neighbour. Shards replaced
+	 * this way are marked retired, and requests that reach a retired shard route
+	 * again through the new map. Queries spanning several shards are not atomic.
+	 */
+	public static class ShardedAVLStore {
+
+		private final int splitThreshold;
+		private final int mergeThreshold;
+		private final AtomicReference<ShardMap> map;
+		private final AtomicLong splits = new AtomicLong();
+		private final AtomicLong merges = new AtomicLong();
+
+		public ShardedAVLStore(int splitThreshold) {
+			if (splitThreshold < 4) {
+				throw new IllegalArgumentException("split threshold too small: " + splitThreshold);
+			}
+			this.splitThreshold = splitThreshold;
+			this.mergeThreshold = splitThreshold / 4;
+			this.map = new AtomicReference<>(new ShardMap(new Shard[] { new Shard(Integer.MIN_VALUE, new AVLTree()) }));
+		}
+
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of the item with key k, or null
+		 */
+		public String search(int k) {
+			while (true) {
+				Shard shard = this.map.get().route(k);
+				shard.lock.lock();
+				try {
+					if (!shard.retired) {
+						return shard.tree.search(k);
+					}
+				} finally {
+					shard.lock.unlock();
+				}
+			}
+		}
+
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts into the shard of k, returns the result of AVLTree.insert
+		 */
+		public int insert(int k, String i) {
+			while (true) {
+				Shard shard = this.map.get().route(k);
+				int result;
+				int size;
+				shard.lock.lock();
+				try {
+					if (shard.retired) {
+						continue;
+					}
+					result = shard.tree.insert(k, i);
+					size = shard.tree.size();
+					shard.size = size;
+				} finally {
+					shard.lock.unlock();
+				}
+				if (size > this.splitThreshold) {
+					splitShard(shard);
+				}
+				return result;
+			}
+		}
+
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes from the shard of k, returns the result of AVLTree.delete
+		 */
+		public int delete(int k) {
+			while (true) {
+				Shard shard = this.map.get().route(k);
+				int result;
+				int size;
+				shard.lock.lock();
+				try {
+					if (shard.retired) {
+						continue;
+					}
+					result = shard.tree.delete(k);
+					size = shard.tree.size();
+					shard.size = size;
+				} finally {
+					shard.lock.unlock();
+				}
+				if (size < this.mergeThreshold) {
+					mergeShard(shard);
+				}
+				return result;
+			}
+		}
+
+		/**
+		 * public Range range(int lo, int hi)
+		 *
+		 * returns the items with keys in [lo, hi], sorted by key. The shards
+		 * overlapping the range are exported in parallel, each under its own lock.
+		 */
+		public Range range(int lo, int hi) {
+			if (lo > hi) {
+				return new Range(new int[0], new String[0]);
+			}
+			while (true) {
+				ShardMap snapshot = this.map.get();
+				int first = snapshot.indexOf(lo);
+				int last = snapshot.indexOf(hi);
+				Range[] parts = IntStream.rangeClosed(first, last).parallel()
+						.mapToObj(i -> snapshot.shards[i].export(lo, hi)).toArray(Range[]::new);
+				int count = 0;
+				boolean retired = false;
+				for (Range part : parts) {
+					retired |= part == null;
+					count += part == null ? 0 : part.keys.length;
+				}
+				if (retired) {
+					continue; // a shard changed meanwhile, route again
+				}
+				int[] keys = new int[count];
+				String[] values = new String[count];
+				int offset = 0;
+				for (Range part : parts) {
+					System.arraycopy(part.keys, 0, keys, offset, part.keys.length);
+					System.arraycopy(part.values, 0, values, offset, part.values.length);
+					offset += part.keys.length;
+				}
+				return new Range(keys, values);
+			}
+		}
+
+		/**
+		 * public int size()
+		 *
+		 * returns the number of items, summed shard by shard
+		 */
+		public int size() {
+			int size = 0;
+			for (int shardSize : shardSizes()) {
+				size += shardSize;
+			}
+			return size;
+		}
+
+		public int shardCount() {
+			return this.map.get().shards.length;
+		}
+
+		/**
+		 * public int[] shardSizes()
+		 *
+		 * returns the current size of every shard, in key order
+		 */
+		public int[] shardSizes() {
+			Shard[] shards = this.map.get().shards;
+			int[] sizes = new int[shards.length];
+			for (int i = 0; i < shards.length; i++) {
+				shards[i].lock.lock();
+				try {
+					sizes[i] = shards[i].tree.size();
+				} finally {
+					shards[i].lock.unlock();
+				}
+			}
+			return sizes;
+		}
+
+		public long splitCount() {
+			return this.splits.get();
+		}
+
+		public long mergeCount() {
+			return this.merges.get();
+		}
+
+		/**
+		 * divides shard at its median key. A map change holds the locks of the shards
+		 * it replaces and publishes the new map with a compare-and-set, retried on
+		 * the newest map if another change won. The shards whose locks are held keep
+		 * their place in any newer map. Data operations only ever hold a single
+		 * shard lock.
+		 */
+		private void splitShard(Shard shard) {
+			shard.lock.lock();
+			try {
+				if (shard.retired || shard.tree.size() <= this.splitThreshold) {
+					return;
+				}
+				int median = shard.tree.select(shard.tree.size() / 2);
+				String info = shard.tree.search(median);
+				AVLTree[] parts = shard.tree.split(median);
+				parts[1].insert(median, info);
+				Shard lower = new Shard(shard.lo, parts[0]);
+				Shard upper = new Shard(median, parts[1]);
+				ShardMap current;
+				Shard[] updated;
+				do {
+					current = this.map.get();
+					Shard[] shards = current.shards;
+					int index = current.indexOf(shard.lo);
+					updated = new Shard[shards.length + 1];
+					System.arraycopy(shards, 0, updated, 0, index);
+					updated[index] = lower;
+					updated[index + 1] = upper;
+					System.arraycopy(shards, index + 1, updated, index + 2, shards.length - index - 1);
+				} while (!this.map.compareAndSet(current, new ShardMap(updated)));
+				shard.retired = true;
+				this.splits.incrementAndGet();
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+
+		/**
+		 * joins shard with its right neighbour, or its left one if it is the last
+		 * shard, when both together stay under the split threshold. The sizes are
+		 * checked without locks first, so deletes from a small shard that cannot be
+		 * merged take no further lock.
+		 */
+		private void mergeShard(Shard shard) {
+			ShardMap snapshot = this.map.get();
+			Shard[] shards = snapshot.shards;
+			if (shards.length == 1) {
+				return;
+			}
+			int index = snapshot.indexOf(shard.lo);
+			if (shards[index] != shard) {
+				return; // retired meanwhile
+			}
+			if (index == shards.length - 1) {
+				index--;
+			}
+			Shard left = shards[index];
+			Shard right = shards[index + 1];
+			if (left.size + right.size >= this.splitThreshold) {
+				return;
+			}
+			// locks are always taken in key order
+			left.lock.lock();
+			right.lock.lock();
+			try {
+				if (left.retired || right.retired || left.tree.size() + right.tree.size() >= this.splitThreshold) {
+					return;
+				}
+				AVLTree merged = left.tree;
+				if (!right.tree.empty()) {
+					// the smallest item of the right shard is the join pivot
+					int key = right.tree.minKey();
+					String info = right.tree.pollFirst();
+					merged.join(merged.factory.createNode(key, info), right.tree);
+				}
+				Shard joined = new Shard(left.lo, merged);
+				ShardMap current;
+				Shard[] updated;
+				do {
+					current = this.map.get();
+					Shard[] currentShards = current.shards;
+					int at = current.indexOf(left.lo);
+					updated = new Shard[currentShards.length - 1];
+					System.arraycopy(currentShards, 0, updated, 0, at);
+					updated[at] = joined;
+					System.arraycopy(currentShards, at + 2, updated, at + 1, currentShards.length - at - 2);
+				} while (!this.map.compareAndSet(current, new ShardMap(updated)));
+				left.retired = true;
+				right.retired = true;
+				this.merges.incrementAndGet();
+			} finally {
+				right.lock.unlock();
+				left.lock.unlock();
+			}
+		}
+
+		private static class Shard {
+
+			private final int lo; // smallest key the shard may hold
+			private final AVLTree tree;
+			private final ReentrantLock lock = new ReentrantLock();
+			private boolean retired; // guarded by lock
+			// tree.size() as of the last change, readable without the lock
+			private volatile int size;
+
+			Shard(int lo, AVLTree tree) {
+				this.lo = lo;
+				this.tree = tree;
+				this.size = tree.size();
+			}
+
+			// returns the items in [lo, hi], or null if the shard was retired
+			Range export(int lo, int hi) {
+				lockManaged();
+				try {
+					if (this.retired) {
+						return null;
+					}
+					int count = this.tree.rangeCount(lo, hi);
+					int[] keys = new int[count];
+					String[] values = new String[count];
+					this.tree.exportRange(lo, hi, keys, values, 0);
+					return new Range(keys, values);
+				} finally {
+					this.lock.unlock();
+				}
+			}
+
+			/**
+			 * takes the lock from a ForkJoinPool worker, which range runs export on.
+			 * While the worker waits the pool may start another one, so the exports
+			 * of the current lock holders, which also run in the pool, can proceed.
+			 */
+			private void lockManaged() {
+				try {
+					ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+						public boolean block() {
+							lock.lock();
+							return true;
+						}
+
+						public boolean isReleasable() {
+							return lock.isHeldByCurrentThread() || lock.tryLock();
+						}
+					});
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (!this.lock.isHeldByCurrentThread()) {
+					this.lock.lock();
+				}
+			}
+		}
+
+		private static class ShardMap {
+
+			private final int[] lows;
+			private final Shard[] shards;
+
+			ShardMap(Shard[] shards) {
+				this.shards = shards;
+				this.lows = new int[shards.length];
+				for (int i = 0; i < shards.length; i++) {
+					this.lows[i] = shards[i].lo;
+				}
+			}
+
+			// index of the shard whose range holds k
+			int indexOf(int k) {
+				int index = Arrays.binarySearch(this.lows, k);
+				return index >= 0 ? index : -index - 2;
+			}
+
+			Shard route(int k) {
+				return this.shards[indexOf(k)];
+			}
+		}
+
+		/**
+		 * public static class Range
+		 *
+		 * the keys and infos returned by a range query, sorted by key
+		 */
+		public static class Range {
+
+			private final int[] keys;
+			private final String[] values;
+
+			Range(int[] keys, String[] values) {
+				this.keys = keys;
+				this.values = values;
+			}
+
+			public int[] getKeys() {
+				return this.keys;
+			}
+
+			public String[] getValues() {
+				return this.values;
+			}
+		}
+	}
+
+	/**
+	 * public static class CombiningAVLStore
+	 *
+	 * Thread-safe front-end in which any number of threads submit inserts and
+	 * deletes to a lock-free queue, and a single combiner thread applies them to
+	 * the wrapped AVLTree, which is never touched by any other thread. The
+	 * combiner drains up to MAX_BATCH requests at a time, sorts them by key so that
+	 * consecutive operations walk the same paths, and completes each future with
+	 * what insert or delete returned. The sort is stable, so requests for the same
+	 * key are applied in the order they were submitted. Tasks given to submit are
+	 * barriers: the requests before them are applied first. Dependent stages of
+	 * the returned futures run on the combiner thread unless they are async.
+	 */
+	public static class CombiningAVLStore implements Closeable {
+
+		private static final int MAX_BATCH = 1 << 10;
+		private static final int INSERT = 0;
+		private static final int DELETE = 1;
+		private static final int TASK = 2;
+
+		private final AVLTree tree;
+		private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger submitting = new AtomicInteger();
+		private final Thread combiner;
+		private volatile boolean sleeping;
+		private volatile boolean closed;
+		private long batches;
+		private long applied;
+
+		public CombiningAVLStore(AVLTree tree) {
+			this.tree = tree;
+			this.combiner = new Thread(this::combine, "avl-combiner");
+			this.combiner.setDaemon(true);
+			this.combiner.start();
+		}
+
+		/**
+		 * public CompletableFuture<Integer> insert(int k, String i)
+		 *
+		 * queues tree.insert(k, i), the future completes with its result
+		 */
+		public CompletableFuture<Integer> insert(int k, String i) {
+			return enqueue(new Request(INSERT, k, i, null));
+		}
+
+		/**
+		 * public CompletableFuture<Integer> delete(int k)
+		 *
+		 * queues tree.delete(k), the future completes with its result
+		 */
+		public CompletableFuture<Integer> delete(int k) {
+			return enqueue(new Request(DELETE, k, null, null));
+		}
+
+		/**
+		 * public <T> CompletableFuture<T> submit(Function<AVLTree, T> task)
+		 *
+		 * runs task on the combiner thread after all requests submitted before it,
+		 * for reads and for operations without a request type of their own
+		 */
+		public <T> CompletableFuture<T> submit(Function<AVLTree, T> task) {
+			return enqueue(new Request(TASK, 0, null, task));
+		}
+
+		/**
+		 * public CompletableFuture<VerifyReport> verify()
+		 *
+		 * runs tree.verify() between two batches, on the combiner thread. No
+		 * snapshot is taken: the check takes O(n), and every write submitted
+		 * meanwhile queues up and completes only after it.
+		 */
+		public CompletableFuture<VerifyReport> verify() {
+			return submit(AVLTree::verify);
+		}
+
+		/**
+		 * public double averageBatch()
+		 *
+		 * returns the average number of requests applied per batch so far
+		 */
+		public double averageBatch() {
+			return submit(tree -> this.batches == 0 ? 0.0 : (double) this.applied / this.batches).join();
+		}
+
+		/**
+		 * public void close()
+		 *
+		 * stops accepting requests, applies the queued ones and stops the combiner
+		 */
+		public void close() {
+			this.closed = true;
+			LockSupport.unpark(this.combiner);
+			boolean interrupted = false;
+			while (this.combiner.isAlive()) {
+				try {
+					this.combiner.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private <T> CompletableFuture<T> enqueue(Request request) {
+			// counted before closed is read, so the combiner cannot stop between the
+			// check and the offer
+			this.submitting.incrementAndGet();
+			try {
+				if (this.closed) {
+					throw new IllegalStateException("store is closed");
+				}
+				this.queue.offer(request);
+			} finally {
+				this.submitting.decrementAndGet();
+			}
+			if (this.sleeping) {
+				LockSupport.unpark(this.combiner);
+			}
+			return (CompletableFuture<T>) request.result;
+		}
+
+		private void combine() {
+			Request[] batch = new Request[MAX_BATCH];
+			while (true) {
+				int count = 0;
+				Request barrier = null;
+				Request request;
+				while (count < MAX_BATCH && (request = this.queue.poll()) != null) {
+					if (request.op == TASK) {
+						barrier = request;
+						break;
+					}
+					batch[count++] = request;
+				}
+				if (count > 0) {
+					apply(batch, count);
+				}
+				if (barrier != null) {
+					run(barrier);
+				}
+				if (count == 0 && barrier == null) {
+					if (this.closed && this.submitting.get() == 0 && this.queue.isEmpty()) {
+						return;
+					}
+					this.sleeping = true;
+					if (this.queue.isEmpty() && !this.closed) {
+						LockSupport.park(this);
+					}
+					this.sleeping = false;
+				}
+			}
+		}
+
+		private void apply(Request[] batch, int count) {
+			Arrays.sort(batch, 0, count, (a, b) -> Integer.compare(a.key, b.key));
+			for (int i = 0; i < count; i++) {
+				Request request = batch[i];
+				batch[i] = null;
+				try {
+					int result = request.op == INSERT ? this.tree.insert(request.key, request.value)
+							: this.tree.delete(request.key);
+					request.result.complete(result);
+				} catch (RuntimeException e) {
+					request.result.completeExceptionally(e);
+				}
+			}
+			this.batches++;
+			this.applied += count;
+		}
+
+		private void run(Request request) {
+			try {
+				request.result.complete(request.task.apply(this.tree));
+			} catch (RuntimeException e) {
+				request.result.completeExceptionally(e);
+			}
+		}
+
+		private static class Request {
+
+			private final int op;
+			private final int key;
+			private final String value;
+			private final Function<AVLTree, ?> task;
+			private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+			Request(int op, int key, String value, Function<AVLTree, ?> task) {
+				this.op = op;
+				this.key = key;
+				this.value = value;
+				this.task = task;
+			}
+		}
+	}
+
+	/**
+	 * public static class AVLStorageEngine
+	 *
+	 * A log-structured store that buffers writes in an AVLTree memtable and
+	 * flushes it, once it holds flushThreshold items, to an immutable sorted run
+	 * file. Flushing is a single exportTo, the keys are already sorted. Deletes
+	 * are written as tombstones. get looks in the memtable first and then in the
+	 * runs from newest to oldest. Each run keeps a sparse index of every
+	 * INDEX_INTERVAL-th key in memory, so a lookup reads one block from disk.
+	 * When compactionTrigger runs exist, a background thread merges them into
+	 * one, dropping shadowed items and tombstones.
+	 *
+	 * Runs are named run-[first]-[last].avl after the flush numbers they cover, so
+	 * opening a directory again ignores runs already merged into a newer one. The
+	 * memtable has no write-ahead log, items not yet flushed are lost on a crash.
+	 * Apart from compaction the engine is not thread safe, like AVLTree.
+	 */
+	public static class AVLStorageEngine implements Closeable {
+
+		private static final int INDEX_INTERVAL = 64;
+		private static final String TOMBSTONE = new String("tombstone");
+		private static final Pattern RUN_NAME = Pattern.compile("run-(\\d+)-(\\d+)\\.avl");
+
+		private final Path directory;
+		private final int flushThreshold;
+		private final int compactionTrigger;
+		private final ExecutorService compactor;
+		private AVLTree memtable = new AVLTree();
+		private List<Run> runs = new ArrayList<>(); // newest first, guarded by this
+		private int nextFlush;
+		private boolean compacting; // guarded by this
+
+		public AVLStorageEngine(Path directory, int flushThreshold, int compactionTrigger) throws IOException {
+			if (flushThreshold < 1 || compactionTrigger < 2) {
+				throw new IllegalArgumentException("invalid thresholds " + flushThreshold + ", " + compactionTrigger);
+			}
+			this.directory = Files.createDirectories(directory);
+			this.flushThreshold = flushThreshold;
+			this.compactionTrigger = compactionTrigger;
+			this.compactor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "avl-compactor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			openRuns();
+		}
+
+		/**
+		 * public void put(int k, String value)
+		 *
+		 * sets the info of key k, replacing an older one
+		 */
+		public void put(int k, String value) throws IOException {
+			if (value == null) {
+				throw new IllegalArgumentException("null info, use delete");
+			}
+			write(k, value);
+		}
+
+		/**
+		 * public void delete(int k)
+		 *
+		 * deletes key k by writing a tombstone
+		 */
+		public void delete(int k) throws IOException {
+			write(k, TOMBSTONE);
+		}
+
+		/**
+		 * public String get(int k)
+		 *
+		 * returns the newest info of key k, or null if it does not exist or was
+		 * deleted. The runs are read without holding the engine's lock.
+		 */
+		public String get(int k) throws IOException {
+			IAVLNode node = this.memtable.nodeSearch(k);
+			String value = node.isRealNode() ? node.getValue() : null;
+			while (value == null) {
+				List<Run> snapshot;
+				synchronized (this) {
+					snapshot = this.runs; // replaced, never changed
+				}
+				// runs are read without the lock, so compaction does not wait for reads
+				try {
+					for (Run run : snapshot) {
+						value = run.get(k);
+						if (value != null) {
+							break;
+						}
+					}
+					break;
+				} catch (ClosedChannelException e) {
+					// a compaction retired a run of the snapshot, its items are in the merged run
+					synchronized (this) {
+						if (this.runs == snapshot) {
+							throw e;
+						}
+					}
+					value = null;
+				}
+			}
+			return value == TOMBSTONE ? null : value;
+		}
+
+		/**
+		 * public void flush()
+		 *
+		 * writes the memtable to a new run, even if it is not full
+		 */
+		public void flush() throws IOException {
+			int count = this.memtable.size();
+			if (count == 0) {
+				return;
+			}
+			int[] keys = new int[count];
+			String[] values = new String[count];
+			this.memtable.exportTo(keys, values, 0);
+			int flush = this.nextFlush++;
+			RunWriter writer = new RunWriter(this.directory, flush, flush);
+			try {
+				for (int i = 0; i < count; i++) {
+					writer.add(keys[i], values[i]);
+				}
+			} catch (IOException e) {
+				writer.abort();
+				throw e;
+			}
+			Run run = writer.finish();
+			synchronized (this) {
+				List<Run> updated = new ArrayList<>(this.runs);
+				updated.add(0, run);
+				this.runs = updated;
+			}
+			this.memtable = new AVLTree();
+			maybeCompact();
+		}
+
+		/**
+		 * public Future<?> compact()
+		 *
+		 * starts merging all current runs into one in the background
+		 */
+		public synchronized Future<?> compact() {
+			this.compacting = true;
+			return this.compactor.submit(() -> {
+				try {
+					// taken when the merge starts, so an earlier merge cannot delete its runs
+					List<Run> snapshot;
+					synchronized (AVLStorageEngine.this) {
+						snapshot = new ArrayList<>(this.runs);
+					}
+					merge(snapshot);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					synchronized (AVLStorageEngine.this) {
+						this.compacting = false;
+					}
+				}
+			});
+		}
+
+		/**
+		 * public synchronized int runCount()
+		 *
+		 * returns the number of run files
+		 */
+		public synchronized int runCount() {
+			return this.runs.size();
+		}
+
+		/**
+		 * public void close()
+		 *
+		 * flushes the memtable, waits for a running compaction and closes the runs
+		 */
+		public void close() throws IOException {
+			flush();
+			this.compactor.shutdown();
+			try {
+				this.compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				for (Run run : this.runs) {
+					run.close();
+				}
+				this.runs = new ArrayList<>();
+			}
+		}
+
+		private void write(int k, String value) throws IOException {
+			IAVLNode node = this.memtable.nodeSearch(k);
+			if (node.isRealNode()) {
+				this.memtable.replaceValue(node, value);
+				return;
+			}
+			this.memtable.insert(k, value);
+			if (this.memtable.size() >= this.flushThreshold) {
+				flush();
+			}
+		}
+
+		private synchronized void maybeCompact() {
+			if (!this.compacting && this.runs.size() >= this.compactionTrigger) {
+				compact();
+			}
+		}
+
+		/**
+		 * merges the runs of snapshot, newest first, into one run and swaps it in.
+		 * snapshot holds all runs that existed, so tombstones can be dropped.
+		 */
+		private void merge(List<Run> snapshot) throws IOException {
+			if (snapshot.size() < 2) {
+				return;
+			}
+			PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> a.key != b.key
+					? Integer.compare(a.key, b.key) : Integer.compare(a.age, b.age));
+			for (int i = 0; i < snapshot.size(); i++) {
+				RunReader reader = new RunReader(snapshot.get(i), i);
+				if (reader.next()) {
+					queue.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			Run newest = snapshot.get(0);
+			Run oldest = snapshot.get(snapshot.size() - 1);
+			RunWriter writer = new RunWriter(this.directory, oldest.first, newest.last);
+			try {
+				while (!queue.isEmpty()) {
+					RunReader reader = queue.poll();
+					int key = reader.key;
+					if (reader.value != TOMBSTONE) {
+						writer.add(key, reader.value);
+					}
+					advance(queue, reader);
+					// older versions of the same key are shadowed
+					while (!queue.isEmpty() && queue.peek().key == key) {
+						advance(queue, queue.poll());
+					}
+				}
+			} catch (IOException e) {
+				writer.abort();
+				throw e;
+			} finally {
+				for (RunReader reader : queue) {
+					reader.close();
+				}
+			}
+			Run merged = writer.finish();
+			synchronized (this) {
+				List<Run> updated = new ArrayList<>(this.runs);
+				updated.removeAll(snapshot);
+				updated.add(merged);
+				this.runs = updated;
+				for (Run run : snapshot) {
+					run.close();
+					Files.deleteIfExists(run.path);
+				}
+			}
+		}
+
+		private static void advance(PriorityQueue<RunReader> queue, RunReader reader) throws IOException {
+			if (reader.next()) {
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+
+		/**
+		 * opens the runs found in the directory, skipping leftovers of unfinished
+		 * writes and runs covered by a merged run
+		 */
+		private void openRuns() throws IOException {
+			List<Run> found = new ArrayList<>();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+				for (Path file : files) {
+					Matcher name = RUN_NAME.matcher(file.getFileName().toString());
+					if (name.matches()) {
+						found.add(Run.open(file, Integer.parseInt(name.group(1)), Integer.parseInt(name.group(2))));
+					} else if (file.getFileName().toString().endsWith(".avl.tmp")) {
+						Files.delete(file);
+					}
+				}
+			}
+			found.sort((a, b) -> a.last != b.last ? Integer.compare(b.last, a.last) : Integer.compare(a.first, b.first));
+			for (Run run : found) {
+				Run last = this.runs.isEmpty() ? null : this.runs.get(this.runs.size() - 1);
+				if (last != null && run.last >= last.first) {
+					// covered by a merged run whose sources were not deleted yet
+					run.close();
+					Files.delete(run.path);
+				} else {
+					this.runs.add(run);
+				}
+			}
+			this.nextFlush = this.runs.isEmpty() ? 0 : this.runs.get(0).last + 1;
+		}
+
+		/**
+		 * an immutable run file of records (key, info length or -1 for a tombstone,
+		 * UTF-8 info) sorted by key, with a sparse in-memory index
+		 */
+		private static class Run implements Closeable {
+
+			private final Path path;
+			private final int first;
+			private final int last;
+			private final FileChannel channel;
+			private final int[] indexKeys;
+			private final long[] indexOffsets;
+			private final long end;
+
+			Run(Path path, int first, int last, int[] indexKeys, long[] indexOffsets, long end) throws IOException {
+				this.path = path;
+				this.first = first;
+				this.last = last;
+				this.channel = FileChannel.open(path, StandardOpenOption.READ);
+				this.indexKeys = indexKeys;
+				this.indexOffsets = indexOffsets;
+				this.end = end;
+			}
+
+			static Run open(Path path, int first, int last) throws IOException {
+				RunWriter index = new RunWriter(null, first, last);
+				try (RunReader reader = new RunReader(path)) {
+					while (reader.next()) {
+						index.addIndex(reader.key, reader.offset);
+					}
+					return new Run(path, first, last, Arrays.copyOf(index.indexKeys, index.indexSize),
+							Arrays.copyOf(index.indexOffsets, index.indexSize), reader.position);
+				}
+			}
+
+			/**
+			 * returns the info of k, TOMBSTONE if k was deleted, or null if the run
+			 * does not hold k
+			 */
+			String get(int k) throws IOException {
+				int block = Arrays.binarySearch(this.indexKeys, k);
+				if (block < 0) {
+					block = -block - 2;
+				}
+				if (block < 0) {
+					return null;
+				}
+				long from = this.indexOffsets[block];
+				long to = block + 1 < this.indexOffsets.length ? this.indexOffsets[block + 1] : this.end;
+				ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+				while (buffer.hasRemaining()) {
+					if (this.channel.read(buffer, from + buffer.position()) < 0) {
+						throw new EOFException("truncated run " + this.path);
+					}
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					int key = buffer.getInt();
+					int length = buffer.getInt();
+					if (key == k) {
+						if (length < 0) {
+							return TOMBSTONE;
+						}
+						return new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+					}
+					if (key > k) {
+						return null;
+					}
+					buffer.position(buffer.position() + Math.max(length, 0));
+				}
+				return null;
+			}
+
+			public void close() throws IOException {
+				this.channel.close();
+			}
+		}
+
+		/**
+		 * writes a run to a temporary file and renames it once complete
+		 */
+		private static class RunWriter {
+
+			private final Path path;
+			private final Path temporary;
+			private final int first;
+			private final int last;
+			private final DataOutputStream out;
+			private long offset;
+			private int count;
+			private int[] indexKeys = new int[16];
+			private long[] indexOffsets = new long[16];
+			private int indexSize;
+
+			// a null directory only collects the index
+			RunWriter(Path directory, int first, int last) throws IOException {
+				this.first = first;
+				this.last = last;
+				if (directory == null) {
+					this.path = null;
+					this.temporary = null;
+					this.out = null;
+					return;
+				}
+				this.path = directory.resolve("run-" + first + "-" + last + ".avl");
+				this.temporary = directory.resolve("run-" + first + "-" + last + ".avl.tmp");
+				this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.temporary)));
+			}
+
+			void add(int key, String value) throws IOException {
+				addIndex(key, this.offset);
+				this.out.writeInt(key);
+				if (value == TOMBSTONE) {
+					this.out.writeInt(-1);
+					this.offset += 8;
+				} else {
+					byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+					this.out.writeInt(bytes.length);
+					this.out.write(bytes);
+					this.offset += 8 + bytes.length;
+				}
+			}
+
+			void addIndex(int key, long offset) {
+				if (this.count++ % INDEX_INTERVAL != 0) {
+					return;
+				}
+				if (this.indexSize == this.indexKeys.length) {
+					this.indexKeys = Arrays.copyOf(this.indexKeys, this.indexSize * 2);
+					this.indexOffsets = Arrays.copyOf(this.indexOffsets, this.indexSize * 2);
+				}
+				this.indexKeys[this.indexSize] = key;
+				this.indexOffsets[this.indexSize] = offset;
+				this.indexSize++;
+			}
+
+			Run finish() throws IOException {
+				this.out.close();
+				Files.move(this.temporary, this.path, StandardCopyOption.ATOMIC_MOVE);
+				return new Run(this.path, this.first, this.last, Arrays.copyOf(this.indexKeys, this.indexSize),
+						Arrays.copyOf(this.indexOffsets, this.indexSize), this.offset);
+			}
+
+			void abort() throws IOException {
+				this.out.close();
+				Files.deleteIfExists(this.temporary);
+			}
+		}
+
+		/**
+		 * reads the records of a run file in order
+		 */
+		private static class RunReader implements Closeable {
+
+			private final DataInputStream in;
+			private final int age;
+			private int key;
+			private String value;
+			private long offset; // offset of the current record
+			private long position; // offset of the next record
+
+			RunReader(Path path) throws IOException {
+				this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+				this.age = 0;
+			}
+
+			RunReader(Run run, int age) throws IOException {
+				this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path)));
+				this.age = age;
+			}
+
+			boolean next() throws IOException {
+				this.offset = this.position;
+				int key;
+				try {
+					key = this.in.readInt();
+				} catch (EOFException e) {
+					return false;
+				}
+				int length = this.in.readInt();
+				this.key = key;
+				if (length < 0) {
+					this.value = TOMBSTONE;
+					this.position += 8;
+				} else {
+					byte[] bytes = new byte[length];
+					this.in.readFully(bytes);
+					this.value = new String(bytes, StandardCharsets.UTF_8);
+					this.position += 8 + length;
+				}
+				return true;
+			}
+
+			public void close() throws IOException {
+				this.in.close();
+			}
+		}
+	}
+
+	/**
+	 * public static class AVLServer
+	 *
+	 * A local TCP front-end for an AVLTree. All connections are served by one
+	 * selector thread, which is also the only thread that touches the tree, so no
+	 * locking is needed. Clients may pipeline requests: every request read from a
+	 * connection in one round is applied as a batch and the responses are written
+	 * back in request order.
+	 *
+	 * Requests (big endian): op byte followed by
+	 * GET key | PUT key, length, UTF-8 info | DELETE key | RANGE lo, hi | RANK key.
+	 * Responses: status byte followed by
+	 * GET length, UTF-8 info (status NOT_FOUND has no payload) | PUT, DELETE and
+	 * RANK the int result of insert, delete and rank | RANGE count, then count
+	 * times key, length, UTF-8 info. A PUT of key -1, which the tree cannot hold,
+	 * gets status ERROR without payload. A connection that sends a malformed
+	 * request or makes its request fail is closed, the others are not affected.
+	 * Once a client has MAX_PENDING_OUTPUT bytes of responses pending, its
+	 * requests are neither applied nor read until it takes them.
+	 */
+	public static class AVLServer implements Runnable, Closeable {
+
+		public static final byte GET = 1;
+		public static final byte PUT = 2;
+		public static final byte DELETE = 3;
+		public static final byte RANGE = 4;
+		public static final byte RANK = 5;
+		public static final byte OK = 0;
+		public static final byte NOT_FOUND = 1;
+		public static final byte ERROR = 2;
+		private static final int MAX_INFO_BYTES = 1 << 20;
+		private static final int BUFFER_SIZE = 1 << 16;
+		// responses a connection may have pending before its requests wait
+		private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+		private final AVLTree tree;
+		private final Selector selector;
+		private final ServerSocketChannel serverChannel;
+		private volatile boolean running = true;
+
+		/**
+		 * public AVLServer(AVLTree tree, int port)
+		 *
+		 * Binds a server for tree to port on the loopback interface, port 0 picks a
+		 * free port. The server handles requests once run() is called.
+		 */
+		public AVLServer(AVLTree tree, int port) throws IOException {
+			this(tree, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		}
+
+		public AVLServer(AVLTree tree, InetSocketAddress address) throws IOException {
+			this.tree = tree;
+			this.selector = Selector.open();
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.bind(address);
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+		}
+
+		public int getPort() {
+			return this.serverChannel.socket().getLocalPort();
+		}
+
+		public void run() {
+			try {
+				while (this.running) {
+					this.selector.select();
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						try {
+							if (key.isAcceptable()) {
+								accept();
+							} else {
+								Connection connection = (Connection) key.attachment();
+								if (key.isReadable()) {
+									connection.read();
+								}
+								if (key.isValid() && key.isWritable()) {
+									connection.write();
+								}
+							}
+						} catch (IOException | RuntimeException e) {
+							// a broken connection or a failed request only affects its own client
+							key.cancel();
+							try {
+								key.channel().close();
+							} catch (IOException closing) {
+								// closing anyway
+							}
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				closeAll();
+			}
+		}
+
+		public void close() {
+			this.running = false;
+			this.selector.wakeup();
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel = this.serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+		}
+
+		private void closeAll() {
+			for (SelectionKey key : this.selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		private class Connection {
+
+			private final SocketChannel channel;
+			private final SelectionKey key;
+			private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+			private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+			// requests left in the input until the output drains
+			private boolean backlogged;
+
+			Connection(SocketChannel channel, SelectionKey key) {
+				this.channel = channel;
+				this.key = key;
+			}
+
+			void read() throws IOException {
+				if (!this.in.hasRemaining()) {
+					this.in = grow(this.in, this.in.capacity());
+				}
+				if (this.channel.read(this.in) < 0) {
+					throw new EOFException("client closed the connection");
+				}
+				apply();
+				write();
+			}
+
+			/**
+			 * Applies the complete requests received so far in order, until the
+			 * pending responses reach MAX_PENDING_OUTPUT.
+			 */
+			private void apply() throws IOException {
+				this.in.flip();
+				this.backlogged = false;
+				while (handle()) {
+					if (this.out.position() >= MAX_PENDING_OUTPUT) {
+						this.backlogged = this.in.hasRemaining();
+						break;
+					}
+				}
+				this.in.compact();
+			}
+
+			/**
+			 * Applies the next request if it was fully received, returns false if
+			 * more bytes are needed.
+			 */
+			private boolean handle() throws IOException {
+				int start = this.in.position();
+				if (this.in.remaining() < 5) {
+					return false;
+				}
+				byte op = this.in.get();
+				int key = this.in.getInt();
+				switch (op) {
+				case GET:
+					writeInfo(AVLServer.this.tree.search(key));
+					return true;
+				case PUT:
+					if (this.in.remaining() < 4) {
+						break;
+					}
+					int length = this.in.getInt();
+					if (length < 0 || length > MAX_INFO_BYTES) {
+						throw new IOException("invalid info length " + length);
+					}
+					if (this.in.remaining() < length) {
+						break;
+					}
+					String info = new String(this.in.array(), this.in.position(), length, StandardCharsets.UTF_8);
+					this.in.position(this.in.position() + length);
+					if (key == -1) {
+						ensureOut(1);
+						this.out.put(ERROR);
+					} else {
+						writeInt(AVLServer.this.tree.insert(key, info));
+					}
+					return true;
+				case DELETE:
+					writeInt(AVLServer.this.tree.delete(key));
+					return true;
+				case RANGE:
+					if (this.in.remaining() < 4) {
+						break;
+					}
+					writeRange(key, this.in.getInt());
+					return true;
+				case RANK:
+					writeInt(AVLServer.this.tree.rank(key));
+					return true;
+				default:
+					throw new IOException("unknown op " + op);
+				}
+				this.in.position(start);
+				return false;
+			}
+
+			private void writeInt(int result) {
+				ensureOut(5);
+				this.out.put(OK).putInt(result);
+			}
+
+			private void writeInfo(String info) {
+				if (info == null) {
+					ensureOut(1);
+					this.out.put(NOT_FOUND);
+					return;
+				}
+				byte[] bytes = info.getBytes(StandardCharsets.UTF_8);
+				ensureOut(5 + bytes.length);
+				this.out.put(OK).putInt(bytes.length).put(bytes);
+			}
+
+			private void writeRange(int lo, int hi) {
+				AVLTree tree = AVLServer.this.tree;
+				int size = lo > hi ? 0 : tree.rangeCount(lo, hi);
+				int[] keys = new int[size];
+				String[] infos = new String[size];
+				int count = tree.exportRange(lo, hi, keys, infos, 0);
+				ensureOut(5);
+				this.out.put(OK).putInt(count);
+				for (int i = 0; i < count; i++) {
+					byte[] bytes = infos[i] == null ? new byte[0] : infos[i].getBytes(StandardCharsets.UTF_8);
+					ensureOut(8 + bytes.length);
+					this.out.putInt(keys[i]).putInt(bytes.length).put(bytes);
+				}
+			}
+
+			private void ensureOut(int bytes) {
+				if (this.out.remaining() < bytes) {
+					this.out = grow(this.out, bytes);
 				}
 			}
-		}
 
-		x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
-		big.rebalanceInsert(x);// insert rebalance
-		pointer = x.getParent();
-		while (pointer != null) {
-			// size update
-			pointer.setSize(pointer.getLeft().getSize() + pointer.getRight().getSize() + 1);
-			pointer = pointer.getParent();
+			void write() throws IOException {
+				while (true) {
+					this.out.flip();
+					this.channel.write(this.out);
+					boolean pending = this.out.hasRemaining();
+					this.out.compact();
+					if (pending) {
+						// stop reading until the client takes its responses
+						this.key.interestOps(SelectionKey.OP_WRITE);
+						return;
+					}
+					if (!this.backlogged) {
+						this.key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					apply();
+				}
+			}
 		}
-		// updating this tree as the joined tree
-		this.setRoot(big.getRoot());
-		return operations + 1;
-	}
 
-	// --------------------------------end new join test--------------------------
+		/**
+		 * Returns a buffer in write mode holding the content of buffer, with room for
+		 * at least extra more bytes. buffer is in write mode as well.
+		 */
+		private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+			buffer.flip();
+			bigger.put(buffer);
+			return bigger;
+		}
 
-	public static void printTree(IAVLNode root, int space) {
-		// Base case
-		if (root == null || !root.isRealNode()) {
-			System.out.println("the tree contains no elements");
-		} else {
-			printTreeRec(root, space);
-			System.out.println("----------------------------------------------------------");
+		public static void main(String[] args) throws IOException {
+			int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+			AVLServer server = new AVLServer(new AVLTree(), port);
+			System.out.println("AVLServer listening on port " + server.getPort());
+			server.run();
 		}
 	}
 
-	private static void printTreeRec(IAVLNode root, int space) {
-		if (root != null && root.getKey() != -1) {
-			// Increase distance between levels
-			space += 10;
-
-			// Process right child first
-			printTreeRec(root.getRight(), space);
-
-			// Print current node after space
-			// count
-			System.out.print(System.lineSeparator());
-			for (int i = 10; i < space; i++)
-				System.out.print(" ");
-			System.out.print(root.getKey() + System.lineSeparator());
+	/**
+	 * public static class AVLLoadClient
+	 *
+	 * A load client for AVLServer. Every connection sends its requests in
+	 * pipelined batches of depth requests, half of them PUT and half GET on
+	 * random keys, and reads the batch's responses afterwards.
+	 *
+	 * usage: AVLLoadClient [port] [connections] [requests per connection] [depth]
+	 * [key range]
+	 */
+	public static class AVLLoadClient {
 
-			// Process left child
-			printTreeRec(root.getLeft(), space);
+		public static void main(String[] args) throws Exception {
+			int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+			int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+			int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+			int depth = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+			int keyRange = args.length > 4 ? Integer.parseInt(args[4]) : 1000000;
+			Thread[] threads = new Thread[connections];
+			long start = System.nanoTime();
+			for (int c = 0; c < connections; c++) {
+				final long seed = c;
+				threads[c] = new Thread(() -> {
+					try {
+						run(port, requests, depth, keyRange, seed);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+				threads[c].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long total = (long) connections * requests;
+			System.out.printf("%d requests in %.2f s, %.0f requests/s%n", total, seconds, total / seconds);
 		}
-	}
 
-	public static void printThisNode(IAVLNode node) {
-		if (node == null) {
-			System.out.println("The node is null");
-		} else {
-			System.out.println("node key: " + node.getKey() + System.lineSeparator() + "node info: " + node.getValue()
-					+ System.lineSeparator() + "node hight: " + node.getHeight());
+		private static void run(int port, int requests, int depth, int keyRange, long seed) throws IOException {
+			Random random = new Random(seed);
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				socket.setTcpNoDelay(true);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				byte[] ops = new byte[depth];
+				for (int done = 0; done < requests; done += depth) {
+					int batch = Math.min(depth, requests - done);
+					for (int i = 0; i < batch; i++) {
+						int key = random.nextInt(keyRange);
+						ops[i] = random.nextBoolean() ? AVLServer.PUT : AVLServer.GET;
+						out.writeByte(ops[i]);
+						out.writeInt(key);
+						if (ops[i] == AVLServer.PUT) {
+							byte[] info = Integer.toString(key).getBytes(StandardCharsets.UTF_8);
+							out.writeInt(info.length);
+							out.write(info);
+						}
+					}
+					out.flush();
+					for (int i = 0; i < batch; i++) {
+						byte status = in.readByte();
+						if (ops[i] == AVLServer.PUT) {
+							in.readInt();
+						} else if (status == AVLServer.OK) {
+							in.skipNBytes(in.readInt());
+						}
+					}
+				}
+			}
 		}
 	}
 
 	/**
-	 * public interface IAVLNode ! Do not delete or modify this - otherwise all
-	 * tests will fail !
+	 * public static class AVLWorkload
+	 *
+	 * A multi-threaded load harness in the style of YCSB. A target is preloaded
+	 * with every other key of [0, keyRange), then every thread runs its share of
+	 * operations drawn from a weighted mix of search, insert, delete and
+	 * split-join, on keys from a uniform, Zipfian or sequential distribution. The
+	 * latency of every operation is recorded in a per-thread LatencyHistogram, and
+	 * the merged histograms give throughput and percentiles that can be appended
+	 * to a CSV file to compare runs across versions. New structures are measured
+	 * by implementing Target.
+	 *
+	 * usage: AVLWorkload [target: locked|sharded|combining] [mix: A|B|C|W or
+	 * search=50,insert=25,delete=20,splitjoin=5] [distribution:
+	 * uniform|zipfian|sequential] [threads] [operations per thread] [key range]
+	 * [csv file] [label]
 	 */
-	public interface IAVLNode {
-		public int getKey(); // returns node's key (for virtuval node return -1)
-
-		public String getValue(); // returns node's value [info] (for virtuval node return null)
+	public static class AVLWorkload {
 
-		public void setLeft(IAVLNode node); // sets left child
-
-		public IAVLNode getLeft(); // returns left child (if there is no left child return null)
-
-		public void setRight(IAVLNode node); // sets right child
-
-		public IAVLNode getRight(); // returns right child (if there is no right child return null)
+		public static final int SEARCH = 0;
+		public static final int INSERT = 1;
+		public static final int DELETE = 2;
+		public static final int SPLIT_JOIN = 3;
+		private static final String[] OPERATIONS = { "search", "insert", "delete", "splitjoin" };
+		private static final double ZIPFIAN_THETA = 0.99;
 
-		public void setParent(IAVLNode node); // sets parent
+		public enum Distribution {
+			UNIFORM, ZIPFIAN, SEQUENTIAL
+		}
 
-		public IAVLNode getParent(); // returns the parent (if there is no parent return null)
+		/**
+		 * public interface Target
+		 *
+		 * The structure under load, called from several threads at once
+		 */
+		public interface Target {
 
-		public boolean isRealNode(); // Returns True if this is a non-virtual AVL node
+			String search(int k);
 
-		public int getHeight(); // Returns the height of the node (-1 for virtual nodes)
+			int insert(int k, String i);
 
-		public void setHeight(int height); // sets the height of the node
+			int delete(int k);
 
-		public int getSize(); // Returns the amount of sons the node has + 1 (for itself)
+			// splits at an existing key near k and joins the parts back
+			default void splitJoin(int k) {
+				throw new UnsupportedOperationException("split-join is not supported by " + getClass().getSimpleName());
+			}
 
-		public void setSize(int s); // Sets the size of the node to s
-	}
+			default boolean supportsSplitJoin() {
+				return false;
+			}
+		}
 
-	/**
-	 * public class AVLNode
-	 *
-	 * If you wish to implement classes other than AVLTree (for example AVLNode), do
-	 * it in this file, not in another file. This class can and must be modified.
-	 * (It must implement IAVLNode)
-	 */
-	public class AVLNode implements IAVLNode {
+		private final Target target;
+		private final int[] weights;
+		private final Distribution distribution;
+		private final int threads;
+		private final int operations;
+		private final int keyRange;
+		private final AtomicInteger sequence = new AtomicInteger();
+		private double zetaN;
+		private double eta;
+		private double seconds;
 
-		private static final int DEFAULT_KEY = -1;
-		private String info;
-		private int key;
-		private IAVLNode left;
-		private IAVLNode right;
-		private IAVLNode parent;
-		private int height;
-		private int size;
+		public AVLWorkload(Target target, int[] weights, Distribution distribution, int threads, int operations,
+				int keyRange) {
+			if (weights.length != OPERATIONS.length || IntStream.of(weights).sum() <= 0
+					|| IntStream.of(weights).anyMatch(w -> w < 0)) {
+				throw new IllegalArgumentException("invalid mix " + Arrays.toString(weights));
+			}
+			if (weights[SPLIT_JOIN] > 0 && !target.supportsSplitJoin()) {
+				throw new IllegalArgumentException("the target does not support split-join");
+			}
+			this.target = target;
+			this.weights = weights.clone();
+			this.distribution = distribution;
+			this.threads = threads;
+			this.operations = operations;
+			this.keyRange = keyRange;
+			if (distribution == Distribution.ZIPFIAN) {
+				// Gray et al., Quickly Generating Billion-Record Synthetic Databases
+				this.zetaN = zeta(keyRange);
+				this.eta = (1 - Math.pow(2.0 / keyRange, 1 - ZIPFIAN_THETA)) / (1 - zeta(2) / this.zetaN);
+			}
+		}
 
-		/*
-		 * public AVLNode() { this(DEFAULT_KEY, null, -1); }
+		/**
+		 * public LatencyHistogram[] run()
+		 *
+		 * preloads the target, runs the workload and returns one merged histogram
+		 * per operation type, indexed by SEARCH, INSERT, DELETE and SPLIT_JOIN
 		 */
+		public LatencyHistogram[] run() throws InterruptedException {
+			for (int k = 0; k < this.keyRange; k += 2) {
+				this.target.insert(k, Integer.toString(k));
+			}
+			LatencyHistogram[][] perThread = new LatencyHistogram[this.threads][];
+			Thread[] workers = new Thread[this.threads];
+			long start = System.nanoTime();
+			for (int t = 0; t < this.threads; t++) {
+				LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+				for (int op = 0; op < OPERATIONS.length; op++) {
+					histograms[op] = new LatencyHistogram();
+				}
+				perThread[t] = histograms;
+				final long seed = t;
+				workers[t] = new Thread(() -> work(new Random(seed), histograms), "avl-workload-" + t);
+				workers[t].start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			this.seconds = (System.nanoTime() - start) / 1e9;
+			LatencyHistogram[] merged = perThread[0];
+			for (int t = 1; t < this.threads; t++) {
+				for (int op = 0; op < OPERATIONS.length; op++) {
+					merged[op].add(perThread[t][op]);
+				}
+			}
+			return merged;
+		}
 
-		public AVLNode() {
-			this(DEFAULT_KEY, null);
-			this.height = -1;
-			this.size = 0;
+		/**
+		 * public double seconds()
+		 *
+		 * returns the wall-clock duration of the last run, without the preload
+		 */
+		public double seconds() {
+			return this.seconds;
 		}
 
-		public AVLNode(int key, String info) {
-			this.info = info;
-			this.key = key;
-			if (key != -1) {
-				this.left = new AVLNode();
-				this.left.setParent(this);
-				this.right = new AVLNode();
-				this.right.setParent(this);
-			} else {
-				this.left = null;
-				this.right = null;
+		/**
+		 * public void report(PrintStream out, LatencyHistogram[] histograms)
+		 *
+		 * prints throughput and latency percentiles in microseconds per operation
+		 */
+		public void report(PrintStream out, LatencyHistogram[] histograms) {
+			long total = 0;
+			for (LatencyHistogram histogram : histograms) {
+				total += histogram.count();
+			}
+			out.printf("%d operations in %.2f s, %.0f operations/s%n", total, this.seconds, total / this.seconds);
+			out.printf("%-10s %10s %10s %10s %10s %10s%n", "operation", "count", "p50 us", "p99 us", "p99.9 us",
+					"max us");
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				LatencyHistogram histogram = histograms[op];
+				if (histogram.count() > 0) {
+					out.printf("%-10s %10d %10.2f %10.2f %10.2f %10.2f%n", OPERATIONS[op], histogram.count(),
+							histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+							histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+				}
 			}
-			this.parent = null;
-			this.height = 0;
-			this.size = 1;
-
 		}
 
-		/*
-		 * public AVLNode(int key, String info, int height) { this.info = info; this.key
-		 * = key; this.left = new AVLNode(); this.right = new AVLNode(); this.parent =
-		 * null; this.height = height;
-		 * 
-		 * }
+		/**
+		 * public void appendCsv(Path file, String label, String targetName,
+		 * LatencyHistogram[] histograms)
+		 *
+		 * appends one row per operation type to file, writing the header first if
+		 * the file is new. Latencies are in microseconds.
 		 */
+		public void appendCsv(Path file, String label, String targetName, LatencyHistogram[] histograms)
+				throws IOException {
+			StringBuilder rows = new StringBuilder();
+			if (!Files.exists(file)) {
+				rows.append("label,target,mix,distribution,threads,key_range,seconds,throughput,"
+						+ "operation,count,p50_us,p99_us,p999_us,max_us\n");
+			}
+			long total = 0;
+			for (LatencyHistogram histogram : histograms) {
+				total += histogram.count();
+			}
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				LatencyHistogram histogram = histograms[op];
+				if (histogram.count() == 0) {
+					continue;
+				}
+				rows.append(String.format(Locale.ROOT, "%s,%s,%s,%s,%d,%d,%.3f,%.0f,%s,%d,%.2f,%.2f,%.2f,%.2f%n",
+						label, targetName, mixName(), this.distribution.name().toLowerCase(Locale.ROOT),
+						this.threads, this.keyRange, this.seconds, total / this.seconds, OPERATIONS[op],
+						histogram.count(), histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+						histogram.percentile(99.9) / 1e3, histogram.max() / 1e3));
+			}
+			Files.write(file, rows.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		}
 
-		public int getKey() {
-			return this.key;
+		/**
+		 * public static int[] parseMix(String mix)
+		 *
+		 * returns the weights of a preset (A: 50% search, 25% insert, 25% delete,
+		 * B: 95% search, C: search only, W: 10% search and the rest insert and
+		 * delete) or of a list such as search=50,insert=25,delete=20,splitjoin=5
+		 */
+		public static int[] parseMix(String mix) {
+			switch (mix) {
+			case "A":
+				return new int[] { 50, 25, 25, 0 };
+			case "B":
+				return new int[] { 95, 3, 2, 0 };
+			case "C":
+				return new int[] { 100, 0, 0, 0 };
+			case "W":
+				return new int[] { 10, 45, 45, 0 };
+			default:
+				int[] weights = new int[OPERATIONS.length];
+				for (String part : mix.split(",")) {
+					String[] pair = part.split("=");
+					int op = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+					if (pair.length != 2 || op < 0) {
+						throw new IllegalArgumentException("invalid mix entry " + part);
+					}
+					weights[op] = Integer.parseInt(pair[1].trim());
+				}
+				return weights;
+			}
 		}
 
-		public String getValue() {
-			return this.info;
+		private String mixName() {
+			StringBuilder name = new StringBuilder();
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				if (this.weights[op] > 0) {
+					name.append(name.length() == 0 ? "" : " ").append(OPERATIONS[op]).append('=')
+							.append(this.weights[op]);
+				}
+			}
+			return name.toString();
 		}
 
-		public void setLeft(IAVLNode node) {
-			this.left = node;
+		private void work(Random random, LatencyHistogram[] histograms) {
+			int total = IntStream.of(this.weights).sum();
+			for (int i = 0; i < this.operations; i++) {
+				int pick = random.nextInt(total);
+				int op = 0;
+				while (pick >= this.weights[op]) {
+					pick -= this.weights[op++];
+				}
+				int key = nextKey(random);
+				long start = System.nanoTime();
+				switch (op) {
+				case SEARCH:
+					this.target.search(key);
+					break;
+				case INSERT:
+					this.target.insert(key, Integer.toString(key));
+					break;
+				case DELETE:
+					this.target.delete(key);
+					break;
+				default:
+					this.target.splitJoin(key);
+				}
+				histograms[op].record(System.nanoTime() - start);
+			}
 		}
 
-		public IAVLNode getLeft() {
-			return this.left;
+		private int nextKey(Random random) {
+			switch (this.distribution) {
+			case SEQUENTIAL:
+				return Math.floorMod(this.sequence.getAndIncrement(), this.keyRange);
+			case ZIPFIAN:
+				double u = random.nextDouble();
+				double uz = u * this.zetaN;
+				long rank;
+				if (uz < 1) {
+					rank = 0;
+				} else if (uz < 1 + Math.pow(0.5, ZIPFIAN_THETA)) {
+					rank = 1;
+				} else {
+					rank = (long) (this.keyRange
+							* Math.pow(this.eta * u - this.eta + 1, 1 / (1 - ZIPFIAN_THETA)));
+				}
+				// scrambled, so that the popular keys are spread over the key range
+				return (int) Math.floorMod(fnv(Math.min(rank, this.keyRange - 1)), (long) this.keyRange);
+			default:
+				return random.nextInt(this.keyRange);
+			}
 		}
 
-		public void setRight(IAVLNode node) {
-			this.right = node;
+		private static double zeta(long n) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, ZIPFIAN_THETA);
+			}
+			return sum;
 		}
 
-		public IAVLNode getRight() {
-			return this.right;
+		// 64-bit FNV-1a of the bytes of value
+		private static long fnv(long value) {
+			long hash = 0xCBF29CE484222325L;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash ^ (value & 0xFF)) * 0x100000001B3L;
+				value >>>= 8;
+			}
+			return hash;
 		}
 
-		public void setParent(IAVLNode node) {
-			this.parent = node;
+		/**
+		 * An AVLTree behind a single lock
+		 */
+		private static class LockedTarget implements Target {
+
+			private final ReentrantLock lock = new ReentrantLock();
+			private AVLTree tree = new AVLTree();
+
+			public String search(int k) {
+				this.lock.lock();
+				try {
+					return this.tree.search(k);
+				} finally {
+					this.lock.unlock();
+				}
+			}
+
+			public int insert(int k, String i) {
+				this.lock.lock();
+				try {
+					return this.tree.insert(k, i);
+				} finally {
+					this.lock.unlock();
+				}
+			}
+
+			public int delete(int k) {
+				this.lock.lock();
+				try {
+					return this.tree.delete(k);
+				} finally {
+					this.lock.unlock();
+				}
+			}
+
+			public void splitJoin(int k) {
+				this.lock.lock();
+				try {
+					int size = this.tree.size();
+					if (size == 0) {
+						return;
+					}
+					int x = this.tree.select(Math.min(this.tree.rank(k), size - 1));
+					String info = this.tree.search(x);
+					AVLTree[] parts = this.tree.split(x);
+					parts[0].join(parts[0].factory.createNode(x, info), parts[1]);
+					this.tree = parts[0];
+				} finally {
+					this.lock.unlock();
+				}
+			}
+
+			public boolean supportsSplitJoin() {
+				return true;
+			}
 		}
 
-		public IAVLNode getParent() {
-			return this.parent;
+		private static class ShardedTarget implements Target {
+
+			private final ShardedAVLStore store = new ShardedAVLStore(1 << 16);
+
+			public String search(int k) {
+				return this.store.search(k);
+			}
+
+			public int insert(int k, String i) {
+				return this.store.insert(k, i);
+			}
+
+			public int delete(int k) {
+				return this.store.delete(k);
+			}
 		}
 
-		// Returns True if this is a non-virtual AVL node
-		public boolean isRealNode() {
-			if (key == -1) {
-				return false;
+		private static class CombiningTarget implements Target {
+
+			private final CombiningAVLStore store = new CombiningAVLStore(new AVLTree());
+
+			public String search(int k) {
+				return this.store.submit(tree -> tree.search(k)).join();
+			}
+
+			public int insert(int k, String i) {
+				return this.store.insert(k, i).join();
+			}
+
+			public int delete(int k) {
+				return this.store.delete(k).join();
 			}
-			return true;
 		}
 
-		public void setHeight(int height) {
-			this.height = height;
+		public static void main(String[] args) throws Exception {
+			String targetName = args.length > 0 ? args[0] : "locked";
+			String mix = args.length > 1 ? args[1] : "A";
+			String distribution = args.length > 2 ? args[2] : "uniform";
+			int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+			int operations = args.length > 4 ? Integer.parseInt(args[4]) : 1000000;
+			int keyRange = args.length > 5 ? Integer.parseInt(args[5]) : 1000000;
+			String csv = args.length > 6 ? args[6] : null;
+			String label = args.length > 7 ? args[7] : "";
+			Target target;
+			switch (targetName) {
+			case "locked":
+				target = new LockedTarget();
+				break;
+			case "sharded":
+				target = new ShardedTarget();
+				break;
+			case "combining":
+				target = new CombiningTarget();
+				break;
+			default:
+				throw new IllegalArgumentException("unknown target " + targetName);
+			}
+			AVLWorkload workload = new AVLWorkload(target, parseMix(mix),
+					Distribution.valueOf(distribution.toUpperCase(Locale.ROOT)), threads, operations, keyRange);
+			LatencyHistogram[] histograms = workload.run();
+			workload.report(System.out, histograms);
+			if (csv != null) {
+				workload.appendCsv(Paths.get(csv), label, targetName, histograms);
+			}
+			if (target instanceof CombiningTarget) {
+				((CombiningTarget) target).store.close();
+			}
 		}
+	}
 
-		public int getHeight() {
-			return this.height;
+	/**
+	 * public static class LatencyHistogram
+	 *
+	 * A histogram of nanosecond latencies in the layout of an HDR histogram.
+	 * Values below 2 * SUB_BUCKETS are counted exactly, larger ones in buckets
+	 * of SUB_BUCKETS sub-buckets per power of two, so every recorded value is
+	 * reported within 1 / SUB_BUCKETS of its true value. Not thread safe, each
+	 * thread keeps its own and they are merged with add.
+	 */
+	public static class LatencyHistogram {
+
+		private static final int SUB_BITS = 7;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		private final long[] counts = new long[2 * SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS];
+		private long count;
+		private long max;
+		private long sum;
+
+		/**
+		 * public void record(long value)
+		 *
+		 * counts one value, negative values count as 0. complexity: O(1)
+		 */
+		public void record(long value) {
+			value = Math.max(value, 0);
+			this.counts[index(value)]++;
+			this.count++;
+			this.sum += value;
+			this.max = Math.max(this.max, value);
 		}
 
-		public int getSize() {
-			return this.size;
+		/**
+		 * public void add(LatencyHistogram other)
+		 *
+		 * adds the counts of other to this histogram
+		 */
+		public void add(LatencyHistogram other) {
+			for (int i = 0; i < this.counts.length; i++) {
+				this.counts[i] += other.counts[i];
+			}
+			this.count += other.count;
+			this.sum += other.sum;
+			this.max = Math.max(this.max, other.max);
 		}
 
-		public void setSize(int s) {
-			this.size = s;
+		/**
+		 * public long percentile(double percent)
+		 *
+		 * returns the highest value of the bucket that holds the given percentile
+		 * of the recorded values, 0 if there are none
+		 */
+		public long percentile(double percent) {
+			long rank = (long) Math.ceil(percent / 100 * this.count);
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= Math.max(rank, 1)) {
+					return Math.min(highest(i), this.max);
+				}
+			}
+			return this.max;
+		}
 
+		public long count() {
+			return this.count;
 		}
 
-	}
+		public long max() {
+			return this.max;
+		}
 
-	public class NodeFactory {
+		public double mean() {
+			return this.count == 0 ? 0 : (double) this.sum / this.count;
+		}
 
-		public IAVLNode createNode(int k, String v) {
-			return new AVLNode(k, v);
+		private static int index(long value) {
+			if (value < 2 * SUB_BUCKETS) {
+				return (int) value;
+			}
+			// value >> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB_BUCKETS + (int) (value >> shift);
 		}
 
-		public IAVLNode createNode() {
-			return new AVLNode();
+		private static long highest(int index) {
+			if (index < 2 * SUB_BUCKETS) {
+				return index;
+			}
+			int shift = index / SUB_BUCKETS - 1;
+			long base = index - shift * SUB_BUCKETS;
+			return ((base + 1) << shift) - 1;
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+/**
+ * public class AVLTreeTest
+ *
+ * Regression checks for behaviour of AVLTree that went wrong before, runnable
+ * without a test framework. main runs every check and exits with status 1 if
+ * one fails.
+ */
+public class AVLTreeTest {
+
+	public static void main(String[] args) {
+		int failed = 0;
+		for (Runnable check : new Runnable[] { AVLTreeTest::joinEvictsToCapacity,
+				AVLTreeTest::filterFollowsRangeDeletes, AVLTreeTest::handlesSurviveCompaction,
+				AVLTreeTest::reinsertReplacesTombstone, AVLTreeTest::handleOfRelinkedNodeStaysStale,
+				AVLTreeTest::tombstonesSkippedWithoutRebuild, AVLTreeTest::rebuildKeepsConcurrentChanges,
+				AVLTreeTest::adaptiveMapRejectsVirtualKey, AVLTreeTest::verifyTellsDepthFromCycles }) {
+			try {
+				check.run();
+			} catch (RuntimeException | AssertionError e) {
+				failed++;
+				e.printStackTrace();
+			}
+		}
+		System.out.println(failed == 0 ? "all checks passed" : failed + " checks failed");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	// join trims every capacity bounded tree, whatever its policy
+	static void joinEvictsToCapacity() {
+		for (AVLTree.EvictionPolicy policy : AVLTree.EvictionPolicy.values()) {
+			AVLTree tree = new AVLTree(10, policy);
+			AVLTree other = new AVLTree(10, policy);
+			for (int i = 0; i < 10; i++) {
+				tree.insert(i, "a" + i);
+				other.insert(100 + i, "b" + i);
+			}
+			tree.join(tree.new TrackedNode(50, "x"), other);
+			check(tree.size() == 10, policy + ": size " + tree.size() + " after join");
+			check(tree.verify().isValid(), policy + ": " + tree.verify());
+			if (policy == AVLTree.EvictionPolicy.SMALLEST_KEY) {
+				check(tree.minKey() == 100, policy + ": kept " + tree.minKey());
+			} else if (policy == AVLTree.EvictionPolicy.LARGEST_KEY) {
+				check(tree.maxKey() == 9, policy + ": kept " + tree.maxKey());
+			}
+		}
+	}
+
+	// the filter counts exactly the keys of the tree after range deletes, split and join
+	static void filterFollowsRangeDeletes() {
+		AVLTree tree = new AVLTree();
+		tree.enableFilter(1 << 16, 0.01);
+		for (int i = 0; i < 200000; i++) {
+			tree.insert(i, "v");
+			if (i % 1000 == 999 && i >= 20000) {
+				tree.deleteRange(i - 20999, i - 20000);
+			}
+		}
+		AVLTree.MembershipFilter filter = tree.getFilter();
+		check(filter.size() == tree.size(), "filter holds " + filter.size() + " keys, tree " + tree.size());
+		check(tree.search(5) == null && tree.search(199999) != null, "range delete lost a key");
+		AVLTree[] parts = tree.split(190000);
+		check(filter.size() == parts[0].size() + parts[1].size(), "split key left in the filter");
+		parts[0].join(parts[0].new AVLNode(190000, "x"), parts[1]);
+		check(filter.size() == parts[0].size(), "join counted " + filter.size() + " keys for " + parts[0].size());
+	}
+
+	// a handle of an item deleted before a compaction stays invalid after it
+	static void handlesSurviveCompaction() {
+		AVLTree tree = new AVLTree();
+		tree.enableLazyDeletion(0.4, false);
+		AVLTree.Handle first = tree.insertHandle(1, "a");
+		tree.insertHandle(2, "b");
+		AVLTree.Handle last = tree.insertHandle(3, "c");
+		tree.delete(first);
+		tree.delete(2);
+		check(tree.tombstoneCount() == 0, "no compaction after the second delete");
+		check(!tree.isValid(first), "handle of a compacted tombstone is valid");
+		check(tree.isValid(last) && tree.rank(last) == 0, "handle of a live item lost");
+		try {
+			tree.delete(first);
+			check(false, "deleted through a stale handle");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		check(tree.size() == 1 && tree.verify().isValid(), "tree broken: " + tree.verify());
+	}
+
+	// a key inserted again after a lazy delete gets a new node, the old handle stays stale
+	static void reinsertReplacesTombstone() {
+		AVLTree tree = new AVLTree();
+		tree.enableLazyDeletion(0.9, false);
+		AVLTree.Handle stale = tree.insertHandle(100, "old");
+		for (int i = 0; i < 200; i++) {
+			tree.insert(i, "v" + i);
+		}
+		tree.delete(100);
+		AVLTree.Handle fresh = tree.insertHandle(100, "new");
+		check(fresh != null && tree.isValid(fresh) && "new".equals(tree.search(100)),
+				"insertHandle of a deleted key returned " + fresh);
+		check(!tree.isValid(stale), "stale handle of deleted 100 valid after reinsert");
+		check(tree.rank(fresh) == 100 && tree.tombstoneCount() == 0, "reinsert left a tombstone");
+		check(tree.verify().isValid(), "after reinsert: " + tree.verify());
+	}
+
+	// a deleted node linked back by join does not make its old handle valid again
+	static void handleOfRelinkedNodeStaysStale() {
+		AVLTree tree = new AVLTree();
+		AVLTree.Handle handle = tree.insertHandle(5, "a");
+		AVLTree.IAVLNode node = tree.getRoot();
+		tree.delete(handle);
+		check(!tree.isValid(handle), "handle of a deleted item is valid");
+		tree.join(node, new AVLTree());
+		check(tree.size() == 1 && "a".equals(tree.search(5)), "join did not link the node back");
+		check(!tree.isValid(handle), "handle of a deleted item valid after its node was joined back");
+		try {
+			tree.delete(handle);
+			check(false, "deleted through a stale handle");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	// rank, select, range queries, exports, split and join skip tombstones in place
+	static void tombstonesSkippedWithoutRebuild() {
+		AVLTree tree = new AVLTree();
+		tree.enableLazyDeletion(0.9, false);
+		for (int i = 0; i < 1000; i++) {
+			tree.insert(i, "v" + i);
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			tree.delete(i);
+		}
+		check(tree.rank(501) == 250 && tree.select(250) == 501, "rank or select counted a tombstone");
+		check(tree.rangeCount(100, 199) == 50, "range count " + tree.rangeCount(100, 199));
+		int[] keys = new int[50];
+		check(tree.exportRange(100, 199, keys, null, 0) == 50 && keys[0] == 101 && keys[49] == 199,
+				"export wrote tombstones");
+		check(tree.keysToArray().length == 500, "keysToArray wrote tombstones");
+		check(tree.tombstoneCount() == 500, "queries rebuilt the tree");
+		AVLTree[] parts = tree.split(501);
+		check(parts[0].size() == 250 && parts[1].size() == 249, "split parts of " + parts[0].size() + " and "
+				+ parts[1].size());
+		check(parts[0].tombstoneCount() + parts[1].tombstoneCount() > 0, "split rebuilt the tree");
+		parts[0].join(parts[0].new AVLNode(501, "x"), parts[1]);
+		check(parts[0].size() == 500 && parts[0].select(499) == 999, "join lost items");
+		check(parts[0].verify().isValid(), "after join: " + parts[0].verify());
+	}
+
+	// a background rebuild is swapped in with the changes made while it ran
+	static void rebuildKeepsConcurrentChanges() {
+		AVLTree tree = new AVLTree();
+		tree.enableLazyDeletion(0.3, true);
+		int count = 200000;
+		for (int i = 0; i < count; i++) {
+			tree.insert(i, "v" + i);
+		}
+		// the delete that passes the ratio starts the rebuild instead of compacting
+		int deleted = 0;
+		while (tree.tombstoneCount() <= 0.3 * tree.getRoot().getSize()) {
+			tree.delete(deleted++);
+		}
+		tree.delete(count - 1);
+		tree.insert(count, "new");
+		tree.insert(0, "again");
+		long deadline = System.nanoTime() + 10_000_000_000L;
+		while (tree.getRoot().getSize() > count && System.nanoTime() < deadline) {
+			tree.search(0);
+			Thread.onSpinWait();
+		}
+		check(tree.getRoot().getSize() < count, "rebuild was not swapped in");
+		check(tree.search(count - 1) == null && "new".equals(tree.search(count)) && "again".equals(tree.search(0)),
+				"changes made during the rebuild were lost");
+		check(tree.size() == count - deleted + 1 && tree.verify().isValid(), "after swap: " + tree.verify());
+	}
+
+	// -1 is rejected in the dense layout as well, so the map can turn back into a tree
+	static void adaptiveMapRejectsVirtualKey() {
+		AVLTree.AdaptiveAVLMap map = new AVLTree.AdaptiveAVLMap();
+		for (int i = -1000; i < 1000; i++) {
+			if (i != -1) {
+				map.insert(i, "v" + i);
+			}
+		}
+		check(map.isDense(), "map of " + map.size() + " dense keys is not dense");
+		try {
+			map.insert(-1, "x");
+			check(false, "dense map took key -1");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		for (int i = -600; i < 1000; i++) {
+			map.delete(i);
+		}
+		check(!map.isDense() && map.size() == 400, "map lost items turning back");
+		for (int i = -1000; i < -600; i++) {
+			check(("v" + i).equals(map.search(i)), "map lost key " + i + " turning back");
+		}
+	}
+
+	// a deep acyclic chain is reported by its heights, a cycle ends the walk
+	static void verifyTellsDepthFromCycles() {
+		AVLTree tree = new AVLTree();
+		int length = 100000;
+		AVLTree.IAVLNode[] chain = new AVLTree.IAVLNode[length];
+		for (int i = length - 1; i >= 0; i--) {
+			chain[i] = tree.new AVLNode(i, "v");
+			if (i < length - 1) {
+				chain[i].setRight(chain[i + 1]);
+				chain[i + 1].setParent(chain[i]);
+			}
+			chain[i].setHeight(length - 1 - i);
+			chain[i].setSize(length - i);
+		}
+		// joining two empty trees takes the chain as it is
+		tree.join(chain[0], new AVLTree());
+		AVLTree.VerifyReport report = tree.verify();
+		check(report.nodeCount() == length, "walked " + report.nodeCount() + " of " + length + " nodes");
+		check(report.violationCount() == length - 2, "expected an unbalanced node for each of "
+				+ (length - 2) + ": " + report);
+		for (String violation : report.getViolations()) {
+			check(violation.contains("unbalanced"), "deep chain reported as: " + violation);
+		}
+		chain[2].setRight(chain[0]);
+		AVLTree.VerifyReport cyclic = tree.verify();
+		check(cyclic.getViolations().stream().anyMatch(violation -> violation.contains("cycle")),
+				"cycle not reported: " + cyclic);
+	}
+}